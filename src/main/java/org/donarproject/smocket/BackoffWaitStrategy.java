@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spins, then yields, then parks for a time doubling from a minimum up to a maximum. Bursts are served with a
+ * spinning latency while an idle thread ends up using almost no CPU.
+ */
+public class BackoffWaitStrategy implements WaitStrategy {
+    private final int spinTries;
+    private final int yieldTries;
+    private final long minParkNanos;
+    private final long maxParkNanos;
+
+    public BackoffWaitStrategy() {
+        this(1000, 100, 1000L, 1000000L);
+    }
+
+    public BackoffWaitStrategy(int spinTries, int yieldTries, long minParkNanos, long maxParkNanos) {
+        if (spinTries < 0 || yieldTries < 0 || spinTries > Integer.MAX_VALUE - yieldTries) {
+            throw new IllegalArgumentException("Invalid tries : " + spinTries + "/" + yieldTries);
+        }
+        if (minParkNanos <= 0 || maxParkNanos < minParkNanos) {
+            throw new IllegalArgumentException("Invalid park times : " + minParkNanos + "/" + maxParkNanos);
+        }
+        this.spinTries = spinTries;
+        this.yieldTries = yieldTries;
+        this.minParkNanos = minParkNanos;
+        this.maxParkNanos = maxParkNanos;
+    }
+
+    @Override
+    public void idle(int attempt) {
+        if (attempt < 0) {
+            /* Overflowed after waiting that long */
+            LockSupport.parkNanos(maxParkNanos);
+        } else if (attempt < spinTries) {
+            BusySpinWaitStrategy.onSpinWait();
+        } else if (attempt < spinTries + yieldTries) {
+            Thread.yield();
+        } else {
+            final int parks = attempt - spinTries - yieldTries;
+            /* Doubles without overflowing */
+            final long parkNanos = parks < Long.numberOfLeadingZeros(minParkNanos) - 1 ? minParkNanos << parks : maxParkNanos;
+            LockSupport.parkNanos(Math.min(parkNanos, maxParkNanos));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Never leaves the CPU, for the lowest wake up latency at the cost of a whole core.
+ * <p>
+ * Hints the processor with {@code Thread.onSpinWait} when running on Java 9 or later.
+ */
+public class BusySpinWaitStrategy implements WaitStrategy {
+    private final static MethodHandle ON_SPIN_WAIT;
+
+    static {
+        MethodHandle onSpinWait = null;
+        try {
+            onSpinWait = MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            /* Java 8, plain spinning */
+        }
+        ON_SPIN_WAIT = onSpinWait;
+    }
+
+    @Override
+    public void idle(int attempt) {
+        onSpinWait();
+    }
+
+    static void onSpinWait() {
+        if (ON_SPIN_WAIT != null) {
+            try {
+                ON_SPIN_WAIT.invokeExact();
+            } catch (Throwable t) {
+                throw new AssertionError(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Raw access to a shared mapping.
+ * <p>
+ * Offsets are not bounds checked and are relative to the start of the mapping. The volatile and ordered
+ * accessors are the only ones giving cross process visibility guarantees. Nothing checks that the mapping is still
+ * there either : once unmapped, any access crashes the JVM.
+ * <p>
+ * Replaced by a memory segment backed implementation on Java 22+, see {@code src/main/java22}.
+ */
+final class MappedMemory {
+    private final static Logger LOGGER = Logger.getLogger(MappedMemory.class.getName());
+    private final static Unsafe UNSAFE;
+    private final static long ADDRESS_OFFSET;
+    private final static long BYTE_ARRAY_OFFSET;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+            ADDRESS_OFFSET = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+            BYTE_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(byte[].class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /* Unsafe.invokeCleaner on Java 9+, the cleaner of the buffers before, null when unavailable */
+    private final static Method INVOKE_CLEANER;
+    private final static Method CLEANER;
+    private final static Method CLEAN;
+
+    static {
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            invokeCleaner = Unsafe.class.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (NoSuchMethodException e) {
+            try {
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (ReflectiveOperationException e1) {
+                LOGGER.log(Level.WARNING, "Mappings cannot be released eagerly, they are left to the garbage collector", e1);
+            }
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    private final MappedByteBuffer buffer;
+    private final long address;
+    private final int size;
+
+    MappedMemory(FileChannel fc, long position, int size) throws IOException {
+        this(fc, FileChannel.MapMode.READ_WRITE, position, size);
+    }
+
+    MappedMemory(FileChannel fc, FileChannel.MapMode mode, long position, int size) throws IOException {
+        this.size = size;
+        buffer = fc.map(mode, position, size);
+        buffer.order(ByteOrder.nativeOrder());
+        address = UNSAFE.getLong(buffer, ADDRESS_OFFSET);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return a new view of the whole mapping
+     */
+    ByteBuffer buffer() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * Reads the whole mapping in.
+     */
+    void load() {
+        buffer.load();
+    }
+
+    /**
+     * Writes a zero on each page from the given offset up to the end of the mapping.
+     */
+    void touch(int offset, int pageSize) {
+        for (long page = offset; page < size; page += pageSize) {
+            UNSAFE.putByte(address + page, (byte) 0);
+        }
+    }
+
+    /**
+     * Writes the changes made to the mapping back to the file.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Releases the mapping right away rather than once garbage collected. Neither this memory nor the views returned
+     * by {@link #buffer()} can be accessed afterwards.
+     */
+    void unmap() {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else if (CLEANER != null) {
+                CLEAN.invoke(CLEANER.invoke(buffer));
+            }
+        } catch (ReflectiveOperationException e) {
+            LOGGER.log(Level.FINE, "Cannot unmap, the mapping is left to the garbage collector", e);
+        }
+    }
+
+    /**
+     * Locks the whole mapping in memory.
+     */
+    void lock() throws IOException {
+        NativeMemory.lock(address, size);
+    }
+
+    byte getByte(int offset) {
+        assert offset >= 0 && offset < size;
+        return UNSAFE.getByte(address + offset);
+    }
+
+    void putByte(int offset, byte value) {
+        assert offset >= 0 && offset < size;
+        UNSAFE.putByte(address + offset, value);
+    }
+
+    int getInt(int offset) {
+        assert offset >= 0 && offset + 4 <= size;
+        return UNSAFE.getInt(address + offset);
+    }
+
+    void putInt(int offset, int value) {
+        assert offset >= 0 && offset + 4 <= size;
+        UNSAFE.putInt(address + offset, value);
+    }
+
+    int getIntVolatile(int offset) {
+        assert offset >= 0 && offset + 4 <= size && (offset & 3) == 0;
+        return UNSAFE.getIntVolatile(null, address + offset);
+    }
+
+    void putIntOrdered(int offset, int value) {
+        assert offset >= 0 && offset + 4 <= size && (offset & 3) == 0;
+        UNSAFE.putOrderedInt(null, address + offset, value);
+    }
+
+    long getLongVolatile(int offset) {
+        assert offset >= 0 && offset + 8 <= size && (offset & 7) == 0;
+        return UNSAFE.getLongVolatile(null, address + offset);
+    }
+
+    void putLongOrdered(int offset, long value) {
+        assert offset >= 0 && offset + 8 <= size && (offset & 7) == 0;
+        UNSAFE.putOrderedLong(null, address + offset, value);
+    }
+
+    boolean compareAndSwapInt(int offset, int expected, int value) {
+        assert offset >= 0 && offset + 4 <= size && (offset & 3) == 0;
+        return UNSAFE.compareAndSwapInt(null, address + offset, expected, value);
+    }
+
+    boolean compareAndSwapLong(int offset, long expected, long value) {
+        assert offset >= 0 && offset + 8 <= size && (offset & 7) == 0;
+        return UNSAFE.compareAndSwapLong(null, address + offset, expected, value);
+    }
+
+    /**
+     * Keeps the loads before the call from being reordered with the ones after it.
+     */
+    static void loadFence() {
+        UNSAFE.loadFence();
+    }
+
+    void clear(int offset, int len) {
+        assert offset >= 0 && offset + len <= size;
+        UNSAFE.setMemory(address + offset, len, (byte) 0);
+    }
+
+    void getBytes(int offset, byte[] dst, int off, int len) {
+        assert offset >= 0 && offset + len <= size;
+        UNSAFE.copyMemory(null, address + offset, dst, BYTE_ARRAY_OFFSET + off, len);
+    }
+
+    void putBytes(int offset, byte[] src, int off, int len) {
+        assert offset >= 0 && offset + len <= size;
+        UNSAFE.copyMemory(src, BYTE_ARRAY_OFFSET + off, null, address + offset, len);
+    }
+
+    void putBytes(int offset, MappedMemory src, int srcOffset, int len) {
+        assert offset >= 0 && offset + len <= size && srcOffset >= 0 && srcOffset + len <= src.size;
+        UNSAFE.copyMemory(null, src.address + srcOffset, null, address + offset, len);
+    }
+
+    /**
+     * Copies the given number of bytes from the position of the given buffer, which is moved past them.
+     */
+    void putBytes(int offset, ByteBuffer src, int len) {
+        assert offset >= 0 && offset + len <= size && len <= src.remaining();
+        final int position = src.position();
+        if (src.hasArray()) {
+            UNSAFE.copyMemory(src.array(), BYTE_ARRAY_OFFSET + src.arrayOffset() + position, null, address + offset, len);
+        } else if (src.isDirect()) {
+            UNSAFE.copyMemory(null, UNSAFE.getLong(src, ADDRESS_OFFSET) + position, null, address + offset, len);
+        } else {
+            /* Read only heap buffer */
+            for (int i = 0; i < len; ++i) {
+                UNSAFE.putByte(address + offset + i, src.get(position + i));
+            }
+        }
+        src.position(position + len);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Several threads writing messages to a single multi producer stream drained by one reader. Reports for each
+ * number of producers the aggregate throughput.
+ * <p>
+ * Usage : {@code MultiProducerBenchmark [directory [messages per producer [message size [max producers]]]]}
+ */
+public class MultiProducerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final Path directory = Paths.get(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        final int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        final int size = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        final int maxProducers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        System.out.println(String.format("%-10s %12s %12s", "Producers", "Mmsg/s", "MB/s"));
+        for (int producers = 1; producers <= maxProducers; producers <<= 1) {
+            /* Warm up */
+            run(directory, producers, messages / 10, size, false);
+            run(directory, producers, messages, size, true);
+        }
+    }
+
+    private static void run(Path directory, int producers, int messages, int size, boolean report) throws IOException, InterruptedException {
+        final Path path = Files.createTempFile(directory, "producers", ".ring");
+        final SMSocketOptions options = new SMSocketOptions().setMultiProducer(true).setRingSize(1 << 22);
+        try (SMOutputStream out = new SMOutputStream(open(path), options);
+             SMInputStream in = new SMInputStream(open(path), null, options)) {
+            final Thread[] threads = new Thread[producers];
+            for (int i = 0; i < producers; ++i) {
+                threads[i] = new Thread(() -> {
+                    final byte[] message = new byte[size];
+                    try {
+                        for (int j = 0; j < messages; ++j) {
+                            out.write(message, 0, size);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }, "Producer " + i);
+            }
+            final long total = (long) producers * messages;
+            final long[] received = new long[1];
+            final RecordHandler handler = (ByteBuffer buffer, int offset, int length) -> received[0]++;
+            final long time = System.nanoTime();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            while (received[0] < total) {
+                in.take(handler, 1024);
+            }
+            final long elapsed = System.nanoTime() - time;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            if (!report) {
+                return;
+            }
+            System.out.println(String.format("%-10d %12.2f %12.1f", producers, total * 1000. / elapsed,
+                    total * size * 1000. / elapsed));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.BaseTSD;
+import com.sun.jna.win32.StdCallLibrary;
+
+import java.io.IOException;
+
+/**
+ * Native memory calls missing from the JDK.
+ */
+final class NativeMemory {
+    private interface CLibrary extends Library {
+        CLibrary INSTANCE = (CLibrary) Native.loadLibrary(Platform.C_LIBRARY_NAME, CLibrary.class);
+
+        int mlock(Pointer addr, NativeLong len);
+    }
+
+    private interface Kernel32 extends StdCallLibrary {
+        Kernel32 INSTANCE = (Kernel32) Native.loadLibrary("kernel32", Kernel32.class);
+
+        boolean VirtualLock(Pointer lpAddress, BaseTSD.SIZE_T dwSize);
+    }
+
+    private NativeMemory() {
+    }
+
+    /**
+     * Locks the given memory range, faulting its pages in.
+     */
+    static void lock(long address, long size) throws IOException {
+        final boolean locked;
+        try {
+            if (Platform.isWindows()) {
+                locked = Kernel32.INSTANCE.VirtualLock(new Pointer(address), new BaseTSD.SIZE_T(size));
+            } else {
+                locked = CLibrary.INSTANCE.mlock(new Pointer(address), new NativeLong(size)) == 0;
+            }
+        } catch (UnsatisfiedLinkError e) {
+            throw new IOException("Memory locking is not supported", e);
+        }
+        if (!locked) {
+            throw new IOException("Cannot lock " + size + "B of memory (error " + Native.getLastError() + ")");
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks the thread for a fixed time, for a near zero idle CPU usage at the cost of the wake up latency.
+ */
+public class ParkingWaitStrategy implements WaitStrategy {
+    private final long parkNanos;
+
+    public ParkingWaitStrategy() {
+        this(100000L);
+    }
+
+    public ParkingWaitStrategy(long parkNanos) {
+        if (parkNanos <= 0) {
+            throw new IllegalArgumentException("Park time <= 0");
+        }
+        this.parkNanos = parkNanos;
+    }
+
+    @Override
+    public void idle(int attempt) {
+        LockSupport.parkNanos(parkNanos);
+    }
+}
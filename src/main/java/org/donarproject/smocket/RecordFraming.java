@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+/**
+ * How records are laid out in a ring.
+ */
+public enum RecordFraming {
+    /**
+     * Every record is padded to the alignment of the ring.
+     */
+    ALIGNED,
+    /**
+     * Records smaller than the alignment of the ring are packed on {@link SMSocketOptions#MIN_ALIGNMENT} bytes,
+     * larger ones still start on the alignment of the ring.
+     */
+    COMPACT
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callback receiving records straight from a ring.
+ *
+ * @see SMInputStream#poll(RecordHandler, int)
+ */
+public interface RecordHandler {
+    /**
+     * @param buffer view of the ring, positioned and limited to the record, only valid until this method returns
+     * @param offset index of the first byte of the record in the buffer
+     * @param length number of bytes of the record
+     */
+    void onRecord(ByteBuffer buffer, int offset, int length);
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+/**
+ * What a {@link SMOutputStream} does when the reader has not consumed enough of the ring for a write.
+ */
+public enum RingFullPolicy {
+    /**
+     * Waits for the reader with the {@link WaitStrategy} of the socket.
+     */
+    BLOCK,
+    /**
+     * Busy spins until the reader releases enough of the ring.
+     */
+    SPIN,
+    /**
+     * Throws an {@link java.io.IOException} without writing anything.
+     */
+    FAIL
+}
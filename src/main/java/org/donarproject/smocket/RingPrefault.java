@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+/**
+ * How the pages of a ring are faulted in when it is mapped, so that the first lap around the ring does not pay a
+ * page fault per page.
+ */
+public enum RingPrefault {
+    /**
+     * Pages are faulted in on first access.
+     */
+    NONE,
+    /**
+     * Pages are read in, see {@link java.nio.MappedByteBuffer#load()}.
+     */
+    LOAD,
+    /**
+     * Pages are written to by the writer of an empty ring, read in otherwise.
+     */
+    TOUCH,
+    /**
+     * Pages are locked in memory, falling back to {@link #TOUCH} if the process is not allowed to.
+     */
+    LOCK
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Maps a ring with each {@link RingPrefault} mode then sends messages through it, one at a time. Reports the time
+ * taken to map the ring, the latency of the first message and the average latency of the messages of the first lap
+ * around the ring, which pays the page faults left, and of the second one.
+ * <p>
+ * Usage : {@code RingPrefaultBenchmark [directory [ring size]]}, use a tmpfs or hugetlbfs directory to compare
+ * placements.
+ */
+public class RingPrefaultBenchmark {
+    private final static int MESSAGE_SIZE = SMStream.CACHE_LINE - SMStream.HEADER_SIZE;
+
+    public static void main(String[] args) throws Exception {
+        final Path directory = Paths.get(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        final int ringSize = args.length > 1 ? Integer.parseInt(args[1]) : SMStream.MAPPED_SIZE;
+        System.out.println("Rings in " + directory + " (" + Files.getFileStore(directory).type() + ")");
+        System.out.println(String.format("%-8s %12s %16s %16s %16s", "Prefault", "Map (ms)", "First (us)", "Lap 1 (ns)", "Lap 2 (ns)"));
+        for (RingPrefault prefault : RingPrefault.values()) {
+            run(directory, ringSize, prefault);
+        }
+    }
+
+    private static void run(Path directory, int ringSize, RingPrefault prefault) throws IOException {
+        final Path path = Files.createTempFile(directory, "prefault", ".ring");
+        final SMSocketOptions options = new SMSocketOptions().setRingSize(ringSize).setRingPrefault(prefault);
+        final int pageSize = SMUtils.pageSize(directory);
+        final byte[] message = new byte[MESSAGE_SIZE];
+        try (FileChannel outChannel = open(path); FileChannel inChannel = open(path)) {
+            long time = System.nanoTime();
+            final SMOutputStream out = new SMOutputStream(outChannel, SMRing.create(outChannel, ringSize, options.getRingSegments(), options.getAlignment(), options.getRecordFraming(), false, pageSize), options);
+            final SMInputStream in = new SMInputStream(inChannel, SMRing.open(inChannel, pageSize, 1, TimeUnit.SECONDS), null, options);
+            final long mapping = System.nanoTime() - time;
+
+            time = System.nanoTime();
+            send(out, in, message);
+            final long first = System.nanoTime() - time;
+
+            final int lap = ringSize / SMStream.CACHE_LINE;
+            time = System.nanoTime();
+            for (int i = 1; i < lap; ++i) {
+                send(out, in, message);
+            }
+            final long firstLap = System.nanoTime() - time;
+            time = System.nanoTime();
+            for (int i = 0; i < lap; ++i) {
+                send(out, in, message);
+            }
+            final long secondLap = System.nanoTime() - time;
+            out.close();
+            in.close();
+
+            System.out.println(String.format("%-8s %12.2f %16.1f %16.1f %16.1f", prefault, mapping / 1000000.,
+                    first / 1000., (double) firstLap / (lap - 1), (double) secondLap / lap));
+        } catch (TimeoutException e) {
+            throw new IOException(e);
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static void send(SMOutputStream out, SMInputStream in, byte[] message) throws IOException {
+        out.write(message, 0, message.length);
+        int read = 0;
+        while (read < message.length) {
+            read += in.read(message, read, message.length - read);
+        }
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Accept pipeline of a {@link SMServerSocket}.
+ * <p>
+ * A detector thread dequeues the connection requests and hands each one to a pool of handshake threads, which queue
+ * the sockets they complete in a backlog {@link #accept(long, TimeUnit)} takes them from. A client slow to handshake
+ * only holds one handshake thread. The requests being handshaked and the sockets in the backlog are bounded together
+ * by the accept backlog, the detector leaving the other requests in the listen queue, where their clients wait.
+ */
+final class SMAcceptor implements Closeable {
+    private final static Logger LOGGER = Logger.getLogger(SMAcceptor.class.getName());
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Handshakes with the client of the given session file.
+     */
+    interface Handshake {
+        SMSocket accept(String name) throws IOException, TimeoutException;
+    }
+
+    /* Returns null if the server is closed */
+    private final Supplier<String> requests;
+    private final Pattern pattern;
+    private final Handshake handshake;
+    /* Free room of the backlog, taken by the detector and given back once a socket is accepted or its handshake failed */
+    private final Semaphore room;
+    private final BlockingQueue<SMSocket> backlog = new LinkedBlockingQueue<>();
+    private final ExecutorService workers;
+    private final Thread detector;
+    private volatile boolean closed = false;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    SMAcceptor(String port, Supplier<String> requests, Pattern pattern, Handshake handshake, int backlogSize, int threads) {
+        this.requests = requests;
+        this.pattern = pattern;
+        this.handshake = handshake;
+        this.room = new Semaphore(backlogSize);
+        final AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "SMServerSocket " + port + " handshake " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.detector = new Thread(this::detect, "SMServerSocket " + port + " detector");
+        detector.setDaemon(true);
+        detector.start();
+    }
+
+    private void detect() {
+        int attempt = 0;
+        try {
+            while (!closed) {
+                if (!room.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                String name;
+                try {
+                    while ((name = requests.get()) == null) {
+                        if (closed) {
+                            return;
+                        }
+                        SMRing.DEFAULT_WAIT_STRATEGY.idle(attempt++);
+                    }
+                } catch (RuntimeException e) {
+                    /* Corrupted listen queue for instance, the next requests may still be valid */
+                    LOGGER.log(Level.WARNING, "Cannot dequeue a connection request", e);
+                    room.release();
+                    SMRing.DEFAULT_WAIT_STRATEGY.idle(attempt++);
+                    continue;
+                }
+                attempt = 0;
+                /* Names come from other processes */
+                if (!pattern.matcher(name).matches()) {
+                    LOGGER.warning("Invalid connection request : " + name);
+                    room.release();
+                    continue;
+                }
+                pending.incrementAndGet();
+                final String _name = name;
+                try {
+                    workers.execute(() -> handshake(_name));
+                } catch (RejectedExecutionException e) {
+                    /* Closed */
+                    pending.decrementAndGet();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            /* Closed */
+        }
+    }
+
+    private void handshake(String name) {
+        SMSocket socket = null;
+        try {
+            LOGGER.fine("Accepted : " + name);
+            socket = handshake.accept(name);
+            completed.incrementAndGet();
+        } catch (TimeoutException e) {
+            LOGGER.fine("Connection request timed out : " + name);
+            timedOut.incrementAndGet();
+        } catch (InterruptedIOException e) {
+            /* Closed */
+            LOGGER.fine("Connection request interrupted : " + name);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Connection request failed : " + name, e);
+            failed.incrementAndGet();
+        } finally {
+            pending.decrementAndGet();
+        }
+        if (socket == null) {
+            room.release();
+            return;
+        }
+        backlog.add(socket);
+        if (closed) {
+            /* In case close drained the backlog before */
+            closeBacklog();
+        }
+    }
+
+    /**
+     * Waits for at least one socket to be accepted and takes all the accepted ones.
+     *
+     * @return the accepted sockets, empty if none has been within the timeout or once closed
+     */
+    List<SMSocket> accept(long timeout, TimeUnit unit) throws InterruptedException {
+        final List<SMSocket> result = new ArrayList<>();
+        final SMSocket first = backlog.poll(timeout, unit);
+        if (first == null) {
+            return result;
+        }
+        result.add(first);
+        backlog.drainTo(result);
+        room.release(result.size());
+        return result;
+    }
+
+    /**
+     * @return the number of handshakes in progress
+     */
+    int pending() {
+        return pending.get();
+    }
+
+    long completed() {
+        return completed.get();
+    }
+
+    long timedOut() {
+        return timedOut.get();
+    }
+
+    long failed() {
+        return failed.get();
+    }
+
+    /**
+     * Stops accepting and closes the sockets accepted but not taken yet. Handshakes in progress are interrupted.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        detector.interrupt();
+        workers.shutdownNow();
+        closeBacklog();
+    }
+
+    private void closeBacklog() {
+        SMSocket socket;
+        while ((socket = backlog.poll()) != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot close an accepted socket", e);
+            }
+        }
+    }
+}
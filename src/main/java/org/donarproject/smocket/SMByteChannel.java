@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * Channel view of a {@link SMSocket}, copying buffers straight from and to the rings.
+ * <p>
+ * Reads block until some bytes are available then return as many as are already published. Writes block
+ * according to the ring full policy of the socket, a gathering write being published as a single record when it
+ * fits in the ring. Closing the channel closes the socket.
+ */
+public class SMByteChannel implements ByteChannel, GatheringByteChannel, ScatteringByteChannel {
+    private final SMSocket socket;
+    private final SMInputStream in;
+    private final SMOutputStream out;
+
+    SMByteChannel(SMSocket socket, SMInputStream in, SMOutputStream out) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        return in.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        checkBounds(dsts, offset, length);
+        checkOpen();
+        return in.read(dsts, offset, length);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        return out.write(src);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        checkBounds(srcs, offset, length);
+        checkOpen();
+        return out.write(srcs, offset, length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (socket.isClosed()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private static void checkBounds(ByteBuffer[] buffers, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > buffers.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.donarproject.smocket.SMStream.CACHE_LINE;
+
+/**
+ * Table of the cursors of the subscribers of a {@link SMPublisher}, laid out in the ring file after the ring.
+ * <p>
+ * Each subscriber owns a slot, holding its state and the position it has read up to on their own pair of cache
+ * lines. A slot is owned by whoever holds the lock of a byte far past the end of the file, so that the slots of dead
+ * subscribers can be taken over and the locks never overlap the mapped data.
+ */
+final class SMCursorTable {
+    static final int FREE = 0;
+    static final int ACTIVE = 1;
+    static final int DROPPED = 2;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int SLOTS_OFFSET = 4;
+    private static final int POLICY_OFFSET = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 2 * CACHE_LINE;
+    private static final int STATE_OFFSET = 0;
+    private static final int CURSOR_OFFSET = 8;
+    private static final long LOCK_OFFSET = 1L << 62;
+
+    private static final int MAGIC = 0x534d4354; //SMCT
+
+    private final FileChannel fc;
+    private final MappedMemory memory;
+    private final int slots;
+    private final SlowSubscriberPolicy policy;
+
+    private SMCursorTable(FileChannel fc, long offset, int slots, SlowSubscriberPolicy policy) throws IOException {
+        this.fc = fc;
+        this.memory = new MappedMemory(fc, offset, (slots + 1) * SLOT_SIZE);
+        this.slots = slots;
+        this.policy = policy;
+    }
+
+    /**
+     * Maps a new table at the given offset of the file and publishes it.
+     */
+    static SMCursorTable create(FileChannel fc, long offset, int slots, SlowSubscriberPolicy policy) throws IOException {
+        SMCursorTable table = new SMCursorTable(fc, offset, slots, policy);
+        table.memory.putInt(SLOTS_OFFSET, slots);
+        table.memory.putInt(POLICY_OFFSET, policy.ordinal());
+        table.memory.putIntOrdered(MAGIC_OFFSET, MAGIC);
+        return table;
+    }
+
+    /**
+     * Maps the table created at the given offset of the file, waiting for it to be published.
+     */
+    static SMCursorTable open(FileChannel fc, long offset, long timeout, TimeUnit unit) throws IOException, TimeoutException {
+        final MappedMemory header = new MappedMemory(fc, offset, HEADER_SIZE);
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int attempt = 0;
+        while (header.getIntVolatile(MAGIC_OFFSET) != MAGIC) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new TimeoutException("Timeout exceeded while waiting for the cursor table to be created");
+            }
+            SMRing.idle(attempt++);
+        }
+        final int slots = header.getInt(SLOTS_OFFSET);
+        final int policy = header.getInt(POLICY_OFFSET);
+        if (slots <= 0 || slots > SMSocketOptions.MAX_SUBSCRIBERS || policy < 0 || policy >= SlowSubscriberPolicy.values().length) {
+            throw new IOException("Corrupted cursor table : " + slots + "/" + policy);
+        }
+        return new SMCursorTable(fc, offset, slots, SlowSubscriberPolicy.values()[policy]);
+    }
+
+    int slots() {
+        return slots;
+    }
+
+    SlowSubscriberPolicy policy() {
+        return policy;
+    }
+
+    int state(int slot) {
+        return memory.getIntVolatile(offset(slot) + STATE_OFFSET);
+    }
+
+    boolean casState(int slot, int expected, int state) {
+        return memory.compareAndSwapInt(offset(slot) + STATE_OFFSET, expected, state);
+    }
+
+    void setState(int slot, int state) {
+        memory.putIntOrdered(offset(slot) + STATE_OFFSET, state);
+    }
+
+    long cursor(int slot) {
+        return memory.getLongVolatile(offset(slot) + CURSOR_OFFSET);
+    }
+
+    void publishCursor(int slot, long position) {
+        memory.putLongOrdered(offset(slot) + CURSOR_OFFSET, position);
+    }
+
+    /**
+     * @return the lock owning the given slot, or null if another subscriber holds it
+     */
+    FileLock tryLock(int slot) throws IOException {
+        try {
+            return fc.tryLock(LOCK_OFFSET + slot, 1, false);
+        } catch (OverlappingFileLockException e) {
+            /* Owned by a subscriber of this JVM */
+            return null;
+        }
+    }
+
+    /**
+     * Frees the given slot if the subscriber owning it is dead.
+     *
+     * @return true if the slot has been freed
+     */
+    boolean releaseIfDead(int slot) throws IOException {
+        try (FileLock lock = tryLock(slot)) {
+            if (lock == null) {
+                return false;
+            }
+            setState(slot, FREE);
+            return true;
+        }
+    }
+
+    private static int offset(int slot) {
+        return (slot + 1) * SLOT_SIZE;
+    }
+}
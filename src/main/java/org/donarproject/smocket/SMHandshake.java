@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Connection request written by a client in its session file.
+ * <p>
+ * The client writes the options it asks for then publishes the request with an ordered store of its magic number.
+ * The server negotiates them against its own options, creates both rings with the resulting geometry, which the
+ * client reads back from the ring control blocks, then answers with the path the names of the ring files derive from,
+ * the ones of a pooled session or the session file name in the ring directory. The client acknowledges the response
+ * once it holds the lock the server watches its liveness with.
+ * <p>
+ * The session file is unmapped as soon as each step is done, rather than left to the garbage collector. With the
+ * {@link SessionLayout#SINGLE_FILE} layout, the rings follow the handshake in the session file, the one written by
+ * the client first, and each end point locks its byte past the end of the file instead of a lock file.
+ */
+final class SMHandshake {
+    static final int SIZE = 1 << 12; //4 KBytes
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int INPUT_RING_SIZE_OFFSET = 4;
+    private static final int OUTPUT_RING_SIZE_OFFSET = 8;
+    private static final int ALIGNMENT_OFFSET = 12;
+    private static final int RECORD_FRAMING_OFFSET = 16;
+    private static final int RING_SEGMENTS_OFFSET = 20;
+    private static final int MULTI_PRODUCER_OFFSET = 24;
+    private static final int ACKNOWLEDGE_MAGIC_OFFSET = 28;
+    private static final int SESSION_LAYOUT_OFFSET = 32;
+
+    private static final int RESPONSE_MAGIC_OFFSET = SMStream.CACHE_LINE;
+    private static final int RINGS_LENGTH_OFFSET = RESPONSE_MAGIC_OFFSET + 4;
+    private static final int RINGS_OFFSET = RESPONSE_MAGIC_OFFSET + 8;
+
+    private static final int MAGIC = 0x534d4851; //SMHQ
+    private static final int RESPONSE_MAGIC = 0x534d4852; //SMHR
+    private static final int ACKNOWLEDGE_MAGIC = 0x534d4841; //SMHA
+
+    /* Locked past the end of a single file session by each end point until closed */
+    static final long CLIENT_LOCK_POSITION = 1L << 62;
+    static final long SERVER_LOCK_POSITION = CLIENT_LOCK_POSITION + 1;
+
+    private SMHandshake() {
+    }
+
+    static void request(FileChannel fc, int pageSize, SMSocketOptions options) throws IOException {
+        final MappedMemory memory = new MappedMemory(fc, 0, mappingSize(pageSize));
+        try {
+            memory.putInt(INPUT_RING_SIZE_OFFSET, options.requestedInputRingSize());
+            memory.putInt(OUTPUT_RING_SIZE_OFFSET, options.requestedOutputRingSize());
+            memory.putInt(ALIGNMENT_OFFSET, options.requestedAlignment());
+            /* 0 when not set */
+            final RecordFraming recordFraming = options.requestedRecordFraming();
+            memory.putInt(RECORD_FRAMING_OFFSET, recordFraming != null ? recordFraming.ordinal() + 1 : 0);
+            memory.putInt(RING_SEGMENTS_OFFSET, options.requestedRingSegments());
+            memory.putInt(MULTI_PRODUCER_OFFSET, options.isMultiProducer() ? 1 : 0);
+            final SessionLayout sessionLayout = options.requestedSessionLayout();
+            memory.putInt(SESSION_LAYOUT_OFFSET, sessionLayout != null ? sessionLayout.ordinal() + 1 : 0);
+            memory.putIntOrdered(MAGIC_OFFSET, MAGIC);
+        } finally {
+            memory.unmap();
+        }
+    }
+
+    /**
+     * Waits for the request of the client and negotiates it.
+     *
+     * @return the options of the server side of the session
+     */
+    static SMSocketOptions accept(FileChannel fc, int pageSize, SMSocketOptions options, long timeout, TimeUnit unit) throws IOException, TimeoutException {
+        final MappedMemory memory = new MappedMemory(fc, 0, mappingSize(pageSize));
+        final int inputRingSize;
+        final int outputRingSize;
+        final int alignment;
+        final int recordFraming;
+        final int ringSegments;
+        final int multiProducer;
+        final int sessionLayout;
+        try {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            int attempt = 0;
+            while (memory.getIntVolatile(MAGIC_OFFSET) != MAGIC) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new TimeoutException("Timeout exceeded while waiting for the session request");
+                }
+                SMRing.idle(attempt++);
+            }
+            inputRingSize = memory.getInt(INPUT_RING_SIZE_OFFSET);
+            outputRingSize = memory.getInt(OUTPUT_RING_SIZE_OFFSET);
+            alignment = memory.getInt(ALIGNMENT_OFFSET);
+            recordFraming = memory.getInt(RECORD_FRAMING_OFFSET);
+            ringSegments = memory.getInt(RING_SEGMENTS_OFFSET);
+            multiProducer = memory.getInt(MULTI_PRODUCER_OFFSET);
+            sessionLayout = memory.getInt(SESSION_LAYOUT_OFFSET);
+        } finally {
+            memory.unmap();
+        }
+        if (!isValid(inputRingSize, SMSocketOptions.MIN_RING_SIZE, SMSocketOptions.MAX_RING_SIZE)
+                || !isValid(outputRingSize, SMSocketOptions.MIN_RING_SIZE, SMSocketOptions.MAX_RING_SIZE)
+                || !isValid(alignment, SMSocketOptions.MIN_ALIGNMENT, SMSocketOptions.MIN_RING_SIZE)
+                || recordFraming < 0 || recordFraming > RecordFraming.values().length
+                || !isValid(ringSegments, 1, SMSocketOptions.MAX_RING_SEGMENTS)
+                || (multiProducer & ~1) != 0
+                || sessionLayout < 0 || sessionLayout > SessionLayout.values().length) {
+            throw new IOException("Invalid session request : " + inputRingSize + "/" + outputRingSize + "/" + alignment + "/" + recordFraming + "/" + ringSegments + "/" + multiProducer + "/" + sessionLayout);
+        }
+        return options.accept(inputRingSize, outputRingSize, alignment, recordFraming != 0 ? RecordFraming.values()[recordFraming - 1] : null, ringSegments, multiProducer != 0,
+                sessionLayout != 0 ? SessionLayout.values()[sessionLayout - 1] : null);
+    }
+
+    /**
+     * Answers the request with the rings of the session.
+     *
+     * @param rings path of the ring files without their {@code _in} and {@code _out} suffixes, null if the rings
+     *              follow the handshake in the session file
+     */
+    static void respond(FileChannel fc, int pageSize, Path rings) throws IOException {
+        final byte[] path = rings != null ? rings.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (path.length > SIZE - RINGS_OFFSET) {
+            throw new IOException("Ring path is too long : " + rings);
+        }
+        final MappedMemory memory = new MappedMemory(fc, 0, mappingSize(pageSize));
+        try {
+            memory.putInt(RINGS_LENGTH_OFFSET, path.length);
+            memory.putBytes(RINGS_OFFSET, path, 0, path.length);
+            memory.putIntOrdered(RESPONSE_MAGIC_OFFSET, RESPONSE_MAGIC);
+        } finally {
+            memory.unmap();
+        }
+    }
+
+    /**
+     * Waits for the server to answer the request.
+     *
+     * @return the path of the ring files without their {@code _in} and {@code _out} suffixes, null if the rings
+     * follow the handshake in the session file
+     */
+    static Path awaitResponse(FileChannel fc, int pageSize, long timeout, TimeUnit unit) throws IOException, TimeoutException {
+        final MappedMemory memory = new MappedMemory(fc, 0, mappingSize(pageSize));
+        try {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            int attempt = 0;
+            while (memory.getIntVolatile(RESPONSE_MAGIC_OFFSET) != RESPONSE_MAGIC) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new TimeoutException("Timeout exceeded while waiting for the session response");
+                }
+                SMRing.idle(attempt++);
+            }
+            final int length = memory.getInt(RINGS_LENGTH_OFFSET);
+            if (length < 0 || length > SIZE - RINGS_OFFSET) {
+                throw new IOException("Invalid session response : " + length);
+            }
+            if (length == 0) {
+                return null;
+            }
+            final byte[] path = new byte[length];
+            memory.getBytes(RINGS_OFFSET, path, 0, length);
+            return Paths.get(new String(path, StandardCharsets.UTF_8));
+        } finally {
+            memory.unmap();
+        }
+    }
+
+    /**
+     * Acknowledges the response, once the client has opened its rings and taken its close lock.
+     */
+    static void acknowledge(FileChannel fc, int pageSize) throws IOException {
+        final MappedMemory memory = new MappedMemory(fc, 0, mappingSize(pageSize));
+        try {
+            memory.putIntOrdered(ACKNOWLEDGE_MAGIC_OFFSET, ACKNOWLEDGE_MAGIC);
+        } finally {
+            memory.unmap();
+        }
+    }
+
+    /**
+     * Waits for the client to acknowledge the response.
+     */
+    static void awaitAcknowledgement(FileChannel fc, int pageSize, long timeout, TimeUnit unit) throws IOException, TimeoutException {
+        final MappedMemory memory = new MappedMemory(fc, 0, mappingSize(pageSize));
+        try {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            int attempt = 0;
+            while (memory.getIntVolatile(ACKNOWLEDGE_MAGIC_OFFSET) != ACKNOWLEDGE_MAGIC) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new TimeoutException("Timeout exceeded while waiting for the session acknowledgement");
+                }
+                SMRing.idle(attempt++);
+            }
+        } finally {
+            memory.unmap();
+        }
+    }
+
+    /**
+     * @return the offset of the first ring of a single file session, the other one following it
+     */
+    static long ringsOffset(int pageSize) {
+        return mappingSize(pageSize);
+    }
+
+    /**
+     * @param pageSize page size of the file system holding the session file, see {@link SMUtils#pageSize(Path)}
+     * @return the number of bytes mapped for the handshake, a multiple of the page size as hugetlbfs requires
+     */
+    private static int mappingSize(int pageSize) {
+        return (SIZE + pageSize - 1) & -pageSize;
+    }
+
+    private static boolean isValid(int value, int min, int max) {
+        return value == 0 || (Integer.bitCount(value) == 1 && value >= min && value <= max);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Liveness of the writers of the rings, read by their readers from shared memory rather than with a lock.
+ * <p>
+ * Each ring written by this process has its heartbeat word incremented every {@link #PERIOD_MILLIS} by a single
+ * thread. A reader deems the writer alive as long as the word moves. Once it has not moved for {@link #TIMEOUT_NANOS},
+ * the writer may only be paused, so the reader checks whether its process still exists, from the identifier and PID
+ * namespace the writer published in the ring.
+ */
+final class SMHeartbeat {
+    private final static Logger LOGGER = Logger.getLogger(SMHeartbeat.class.getName());
+
+    static final long PERIOD_MILLIS = 100;
+    /* Long enough not to check the process of a writer paused by a collection */
+    static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private static final Path PROC = Paths.get("/proc");
+
+    /* 0 if unknown */
+    static final int PID = currentPid();
+    /* Identifier of the PID namespace of this process, 0 if unknown, so that a PID is only looked up in its own */
+    static final long PID_NAMESPACE = currentPidNamespace();
+
+    private static final Set<SMRing> rings = ConcurrentHashMap.newKeySet();
+
+    private final static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SMSocket heartbeat");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        scheduler.scheduleAtFixedRate(SMHeartbeat::beat, PERIOD_MILLIS, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private SMHeartbeat() {
+    }
+
+    /**
+     * Publishes this process as the writer of the given ring and keeps its heartbeat until {@link #stop(SMRing)}.
+     */
+    static void start(SMRing ring) {
+        ring.publishWriter(PID, PID_NAMESPACE);
+        rings.add(ring);
+    }
+
+    static void stop(SMRing ring) {
+        rings.remove(ring);
+    }
+
+    private static void beat() {
+        for (SMRing ring : rings) {
+            try {
+                ring.acquire();
+            } catch (IOException e) {
+                /* Unmapped */
+                rings.remove(ring);
+                continue;
+            }
+            try {
+                ring.beat();
+            } finally {
+                ring.release();
+            }
+        }
+    }
+
+    /**
+     * @return true if the given process is known not to exist anymore, false if it exists or cannot be checked
+     */
+    static boolean isDead(int pid, long pidNamespace) {
+        if (pid == 0 || pidNamespace == 0 || pidNamespace != PID_NAMESPACE) {
+            return false;
+        }
+        return !Files.exists(PROC.resolve(Integer.toString(pid)));
+    }
+
+    private static int currentPid() {
+        /* pid@hostname on the usual virtual machines */
+        final String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            LOGGER.fine("Cannot find the PID of this process in " + name);
+            return 0;
+        }
+    }
+
+    private static long currentPidNamespace() {
+        try {
+            /* pid:[inode] */
+            final String link = Files.readSymbolicLink(PROC.resolve("self").resolve("ns").resolve("pid")).toString();
+            return Long.parseLong(link.replaceAll("[^0-9]", ""));
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+}
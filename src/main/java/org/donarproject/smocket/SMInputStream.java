@@ -18,107 +18,385 @@ package org.donarproject.smocket;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.nio.file.FileSystems;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class SMInputStream extends InputStream implements SMStream {
-    private final static int REDUCED_CACHE_LINE = CACHE_LINE - HEADER_SIZE;
-    private final static int DOUBLE_REDUCED_CACHE_LINE = 2 * CACHE_LINE - HEADER_SIZE;
+    private final static long OPEN_TIMEOUT = 5;
+    /* Number of idle attempts between two checks of the remote end point */
+    private final static int REMOTE_CHECK_MASK = (1 << 10) - 1;
 
     private final FileChannel fc;
+    private final SMRing ring;
+    /* Position of the next byte to read, or of the next record header when nothing is available */
+    private long position;
+    /* Positions of the record being read and of the one following it */
+    private long recordStart;
+    private long recordEnd;
+    /* Last writer position read from the ring */
+    private long tail;
     private int available = 0;
-    private int padding = 0;
-    private FileLock fileLock;
-    private MappedByteBuffer mbb;
+    /* Read only views of the segments of the ring handed to record handlers */
+    private ByteBuffer[] views;
+    private int emptyPolls = 0;
 
     private boolean closed = false;
     private final Object closeLock = new Object();
     private final FileChannel closeGuard;
+    /* Byte of the close guard locked by the remote end point */
+    private final long closeGuardPosition;
+    /* Last heartbeat of the writer seen, and when it was */
+    private long heartbeat;
+    private long heartbeatTime;
+    private final WaitStrategy waitStrategy;
 
     public SMInputStream(Path address) throws IOException {
-        this(address, null);
+        this(address, (FileChannel) null);
     }
 
     public SMInputStream(Path address, FileChannel closeGuard) throws IOException {
-        Set<StandardOpenOption> options = new HashSet<>();
-        options.add(StandardOpenOption.READ);
-        options.add(StandardOpenOption.WRITE);
-        options.add(StandardOpenOption.DELETE_ON_CLOSE);
-        fc = FileSystems.getDefault().provider().newFileChannel(address, options);
-        this.closeGuard = closeGuard;
-        prepareBuffer();
+        this(SMUtils.openExchangeFile(address), closeGuard);
+    }
+
+    public SMInputStream(Path address, SMSocketOptions options) throws IOException {
+        this(SMUtils.openExchangeFile(address), null, options);
     }
 
     public SMInputStream(FileChannel fc, FileChannel closeGuard) throws IOException {
+        this(fc, closeGuard, new SMSocketOptions());
+    }
+
+    /**
+     * Maps the ring created by the writer, waiting for it if needed, and waits for data with the wait strategy of
+     * the given options.
+     */
+    public SMInputStream(FileChannel fc, FileChannel closeGuard, SMSocketOptions options) throws IOException {
+        this(fc, openRing(fc), closeGuard, options);
+    }
+
+    SMInputStream(FileChannel fc, SMRing ring, FileChannel closeGuard, SMSocketOptions options) {
+        this(fc, ring, closeGuard, 0, options);
+    }
+
+    SMInputStream(FileChannel fc, SMRing ring, FileChannel closeGuard, long closeGuardPosition, SMSocketOptions options) {
         this.fc = fc;
+        this.ring = ring;
         this.closeGuard = closeGuard;
-        prepareBuffer();
+        this.closeGuardPosition = closeGuardPosition;
+        heartbeat = ring.heartbeat();
+        heartbeatTime = System.nanoTime();
+        this.waitStrategy = options.getWaitStrategy();
+        position = recordStart = recordEnd = tail = ring.head();
+        ring.prefault(options.getRingPrefault(), false);
     }
 
-    private void prepareBuffer() throws IOException {
-        mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, MAPPED_SIZE);
-        mbb.order(ByteOrder.nativeOrder());
+    private static SMRing openRing(FileChannel fc) throws IOException {
+        try {
+            return SMRing.open(fc, SMRing.PAGE_SIZE, OPEN_TIMEOUT, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException(e);
+        }
     }
 
     @Override
     public int read() throws IOException {
-        if (!checkAvailable())
-            return -1;
-        --available;
-        return mbb.get();
+        final SMRing _ring = ring;
+        _ring.acquire();
+        try {
+            if (!checkAvailable())
+                return -1;
+            final int b = _ring.memory(position).getByte(_ring.offset(position)) & 0xFF;
+            ++position;
+            if (--available == 0) {
+                consumed();
+            }
+            return b;
+        } finally {
+            _ring.release();
+        }
     }
 
     private boolean checkAvailable() throws IOException {
         if (available == 0) {
             readSize();
-            if (available == 0) {
-                return false;
-            } else if (closeGuard != null) {
-                try (FileLock lock = closeGuard.tryLock(0, 1, true)) {
-                    if (lock != null)
-                        return false;
-                }
-            }
+            return available != 0;
         }
         return true;
     }
 
+    /**
+     * Waits for the next record and reads its length. Leaves {@code available} to 0 at the end of the stream.
+     */
     private void readSize() throws IOException {
-        final MappedByteBuffer _mbb = mbb;
-        int position = _mbb.position() + padding;
-        if (position == MAPPED_SIZE)
-            position = 0;
-        _mbb.position(position);
-        final FileLock _fileLock = fc.lock(position, HEADER_SIZE, true);
-        if (fileLock != null && fileLock.isValid() && fc.isOpen()) {
-            fileLock.release();
-        }
-        fileLock = _fileLock;
-        available = _mbb.getInt();
-        padding = getPadding(available);
-    }
-
-    private static int getPadding(int len) {
-        if (len == 0)
+        int attempt = 0;
+        while (!hasNext()) {
+            if (isEndOfStream(attempt)) {
+                return;
+            }
+            if (ring.isUnmapped()) {
+                throw new IOException("Stream closed");
+            }
+            waitStrategy.idle(attempt++);
+        }
+    }
+
+    /**
+     * Reads the length of the next record if the writer has published one, skipping padding.
+     *
+     * @return false if the writer has not published any new record
+     */
+    private boolean nextRecord() {
+        final SMRing _ring = ring;
+        for (; ; ) {
+            final int length;
+            if (_ring.isMultiProducer()) {
+                /* Each record is committed by its header */
+                length = _ring.memory(position).getIntVolatile(_ring.offset(position));
+                if (length == 0) {
+                    return false;
+                }
+            } else {
+                if (position == tail && (tail = _ring.tail()) == position) {
+                    return false;
+                }
+                length = _ring.memory(position).getInt(_ring.offset(position));
+            }
+            recordStart = position;
+            if (length < 0) {
+                /* Padding up to the end of the ring */
+                recordEnd = position - length;
+                consumed();
+                continue;
+            }
+            available = length;
+            recordEnd = position + _ring.recordLength(length);
+            position += HEADER_SIZE;
+            return true;
+        }
+    }
+
+    /**
+     * Called when no record is available.
+     *
+     * @param attempt number of consecutive calls
+     */
+    private boolean isEndOfStream(int attempt) throws IOException {
+        final SMRing _ring = ring;
+        /* The writer publishes its last position before flagging itself as closed */
+        if (_ring.isWriterClosed() && (tail = _ring.tail()) == position) {
+            return true;
+        }
+        /* Only check the remote end point once idle, so that pending records are drained first */
+        return (attempt & REMOTE_CHECK_MASK) == REMOTE_CHECK_MASK && isRemoteClosed();
+    }
+
+    /**
+     * Hands the available records to the given handler straight from the ring, without waiting nor copying.
+     * <p>
+     * The handler receives a read only view of the ring whose position and limit frame the record. The view is
+     * only valid until the handler returns, the record being released to the writer right after. When a record has
+     * been partly read through the stream methods, its remaining bytes are handed as a record.
+     *
+     * @param limit maximum number of records to handle
+     * @return the number of records handled, or -1 at the end of the stream
+     */
+    public int poll(RecordHandler handler, int limit) throws IOException {
+        ring.acquire();
+        try {
+            int count = 0;
+            while (count < limit) {
+                if (available == 0 && !nextRecord()) {
+                    if (count == 0 && isEndOfStream(emptyPolls++)) {
+                        return -1;
+                    }
+                    break;
+                }
+                final ByteBuffer _view = view(position);
+                final int offset = ring.offset(position);
+                _view.clear();
+                _view.position(offset).limit(offset + available);
+                handler.onRecord(_view, offset, available);
+                available = 0;
+                consumed();
+                ++count;
+            }
+            if (count > 0) {
+                emptyPolls = 0;
+            }
+            return count;
+        } finally {
+            ring.release();
+        }
+    }
+
+    /**
+     * Waits for a record then hands the available records to the given handler, as {@link #poll(RecordHandler, int)}
+     * does.
+     *
+     * @param limit maximum number of records to handle
+     * @return the number of records handled, or -1 at the end of the stream
+     */
+    public int take(RecordHandler handler, int limit) throws IOException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive : " + limit);
+        }
+        int attempt = 0;
+        int count;
+        while ((count = poll(handler, limit)) == 0) {
+            waitStrategy.idle(attempt++);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the available bytes into the given buffer, waiting for a record if none is available.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        ring.acquire();
+        try {
+            if (!checkAvailable())
+                return -1;
+            return transfer(dst);
+        } finally {
+            ring.release();
+        }
+    }
+
+    /**
+     * Reads the available bytes into the given buffers, in sequence, waiting for a record if none is available.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        int first = offset;
+        while (first < offset + length && !dsts[first].hasRemaining()) {
+            ++first;
+        }
+        if (first == offset + length) {
             return 0;
-        if (len <= REDUCED_CACHE_LINE) {
-            return REDUCED_CACHE_LINE - len;
-        } else if (len <= DOUBLE_REDUCED_CACHE_LINE) {
-            return DOUBLE_REDUCED_CACHE_LINE - len;
-        } else {
-            final int reste = (len - REDUCED_CACHE_LINE) % CACHE_LINE;
-            if (reste == 0) {
-                return 0;
+        }
+        ring.acquire();
+        try {
+            if (!checkAvailable())
+                return -1;
+            long read = 0;
+            for (int i = first; i < offset + length; ++i) {
+                read += transfer(dsts[i]);
+                if (dsts[i].hasRemaining()) {
+                    break;
+                }
             }
-            return CACHE_LINE - reste;
+            return read;
+        } finally {
+            ring.release();
+        }
+    }
+
+    /**
+     * Copies the records already published straight from the ring to the given buffer, without waiting.
+     *
+     * @return the number of bytes copied
+     */
+    private int transfer(ByteBuffer dst) {
+        int transferred = 0;
+        while (dst.hasRemaining() && hasNext()) {
+            final int len = Math.min(available, dst.remaining());
+            final ByteBuffer _view = view(position);
+            final int offset = ring.offset(position);
+            _view.clear();
+            _view.position(offset).limit(offset + len);
+            dst.put(_view);
+            position += len;
+            transferred += len;
+            if ((available -= len) == 0) {
+                consumed();
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * @return the read only view of the segment holding the given position
+     */
+    private ByteBuffer view(long position) {
+        if (views == null) {
+            views = new ByteBuffer[ring.segmentCount()];
+        }
+        final int segment = ring.segment(position);
+        ByteBuffer view = views[segment];
+        if (view == null) {
+            view = views[segment] = ring.memory(position).buffer().asReadOnlyBuffer();
+        }
+        return view;
+    }
+
+    /**
+     * @return true if bytes are available, reading the next non empty record if needed
+     */
+    private boolean hasNext() {
+        while (available == 0) {
+            if (!nextRecord()) {
+                return false;
+            }
+            if (available == 0) {
+                /* Empty records carry nothing for a stream */
+                consumed();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases the current record to the writer.
+     */
+    private void consumed() {
+        final SMRing _ring = ring;
+        if (_ring.isMultiProducer()) {
+            /* Writers of the next lap commit their records over cleared headers */
+            _ring.memory(recordStart).clear(_ring.offset(recordStart), (int) (recordEnd - recordStart));
+        }
+        position = recordEnd;
+        _ring.publishHead(position);
+    }
+
+    /**
+     * Detects a writer that died without closing the ring, from shared memory as long as its heartbeat moves.
+     */
+    private boolean isRemoteClosed() throws IOException {
+        final SMRing _ring = ring;
+        final long _heartbeat = _ring.heartbeat();
+        final long now = System.nanoTime();
+        if (_heartbeat != heartbeat) {
+            heartbeat = _heartbeat;
+            heartbeatTime = now;
+            return false;
+        }
+        if (now - heartbeatTime < SMHeartbeat.TIMEOUT_NANOS) {
+            return false;
+        }
+        if (SMHeartbeat.isDead(_ring.writerPid(), _ring.writerPidNamespace())) {
+            return true;
+        }
+        /* The process of the writer cannot be checked, or lives but may hang */
+        if (closeGuard == null) {
+            return false;
+        }
+        try (FileLock lock = closeGuard.tryLock(closeGuardPosition, 1, true)) {
+            return lock != null;
+        } catch (OverlappingFileLockException e) {
+            /* The remote end point lives in this JVM and still holds its lock */
+            return false;
         }
     }
 
@@ -136,16 +414,24 @@ public class SMInputStream extends InputStream implements SMStream {
         } else if (len == 0) {
             return 0;
         }
-        if (!checkAvailable())
-            return -1;
-        if (available < len) {
-            len = available;
-            available = 0;
-        } else {
+        final SMRing _ring = ring;
+        _ring.acquire();
+        try {
+            if (!checkAvailable())
+                return -1;
+            if (available < len) {
+                len = available;
+            }
+            _ring.memory(position).getBytes(_ring.offset(position), b, off, len);
+            position += len;
             available -= len;
+            if (available == 0) {
+                consumed();
+            }
+            return len;
+        } finally {
+            _ring.release();
         }
-        mbb.get(b, off, len);
-        return len;
     }
 
     @Override
@@ -164,11 +450,12 @@ public class SMInputStream extends InputStream implements SMStream {
             if (isClosed())
                 return;
             closed = true;
-            mbb = null;
-            assert fileLock == null || fileLock.channel() == fc;
-            if (fileLock != null && fileLock.isValid() && fc.isOpen()) {
-                fileLock.release();
+            /* The channel may be shared with the output stream of a single file session */
+            if (!ring.isUnmapped()) {
+                ring.closeReader();
             }
+            /* Once the threads still reading give up */
+            ring.unmap();
             fc.close();
         }
     }
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.donarproject.smocket.SMStream.CACHE_LINE;
+import static org.donarproject.smocket.SMStream.HEADER_SIZE;
+
+/**
+ * Persistent log of records, appended to memory mapped segment files and read back by {@link SMJournalReader}s.
+ * <p>
+ * Records are framed as in a ring and addressed by their position, a byte count since the creation of the journal,
+ * which readers store to resume from. Each segment file holds the positions of a segment size multiple up to the
+ * next one, the end of a segment being padded when a record does not fit in. A sparse index file next to each
+ * segment maps times to the positions of the records appended then. A control file publishes the position of the
+ * writer, so that readers tail live records, and holds the lock of the only writer. Whole segments are deleted once
+ * the journal exceeds its retention size or they exceed its retention age.
+ */
+public class SMJournal implements Closeable {
+    private final static Logger LOGGER = Logger.getLogger(SMJournal.class.getName());
+
+    static final String CONTROL_FILE = "journal";
+    static final int CONTROL_SIZE = 1 << 12; //4 KBytes
+    /* Number of bytes appended between two index entries */
+    static final int INDEX_INTERVAL = 1 << 16; //64 KBytes
+    static final int INDEX_ENTRY_SIZE = 16;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int SEGMENT_SIZE_OFFSET = 4;
+    static final int TAIL_OFFSET = 2 * CACHE_LINE;
+    static final int START_OFFSET = 4 * CACHE_LINE;
+    private static final int MAGIC = 0x534d4a4c; //SMJL
+
+    private final Path directory;
+    private final FileChannel controlFC;
+    private final FileLock writerLock;
+    private final MappedMemory control;
+    private final int segmentSize;
+    private final long retentionSize;
+    private final long retentionMillis;
+    private long tail;
+    /* Position of the oldest record retained, as published in the control file */
+    private long start;
+    /* Segment and index holding the tail, null until the first append in a new segment */
+    private MappedMemory segment;
+    private MappedMemory index;
+    private int indexEntries;
+    private long lastIndexed;
+    private boolean closed = false;
+    private final Object closeLock = new Object();
+
+    public SMJournal(Path directory) throws IOException {
+        this(directory, new SMSocketOptions());
+    }
+
+    /**
+     * Opens the journal of the given directory for writing, creating it with the journal segment size of the given
+     * options if needed, and deleting the segments out of its retention.
+     */
+    public SMJournal(Path directory, SMSocketOptions options) throws IOException {
+        this.directory = directory;
+        this.retentionSize = options.getJournalRetentionSize();
+        this.retentionMillis = options.getJournalRetentionAge(TimeUnit.MILLISECONDS);
+        Files.createDirectories(directory);
+        controlFC = FileChannel.open(directory.resolve(CONTROL_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            writerLock = tryLock(controlFC);
+            if (writerLock == null) {
+                throw new IOException("Journal " + directory + " is already open for writing");
+            }
+            control = new MappedMemory(controlFC, 0, CONTROL_SIZE);
+            if (control.getIntVolatile(MAGIC_OFFSET) == MAGIC) {
+                segmentSize = control.getInt(SEGMENT_SIZE_OFFSET);
+                tail = control.getLongVolatile(TAIL_OFFSET);
+                start = control.getLongVolatile(START_OFFSET);
+            } else {
+                segmentSize = options.getJournalSegmentSize();
+                control.putInt(SEGMENT_SIZE_OFFSET, segmentSize);
+                control.putIntOrdered(MAGIC_OFFSET, MAGIC);
+            }
+            if ((tail & (segmentSize - 1)) != 0) {
+                openSegment(tail & -segmentSize);
+            }
+            deleteExpiredSegments();
+        } catch (IOException e) {
+            unmapSegment();
+            controlFC.close();
+            throw e;
+        }
+    }
+
+    private static FileLock tryLock(FileChannel fc) throws IOException {
+        try {
+            return fc.tryLock(0, 1, false);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Appends the given bytes as one record.
+     *
+     * @return the position of the record
+     * @throws IllegalArgumentException if the record is larger than {@link #getMaxRecordLength()}
+     */
+    public long append(byte[] b, int off, int len) throws IOException {
+        checkBounds(b, off, len);
+        synchronized (closeLock) {
+            final long position = claim(len);
+            segment.putBytes(offset(position) + HEADER_SIZE, b, off, len);
+            return commit(position, len);
+        }
+    }
+
+    /**
+     * Appends the remaining bytes of the given buffer as one record.
+     *
+     * @return the position of the record
+     * @throws IllegalArgumentException if the record is larger than {@link #getMaxRecordLength()}
+     */
+    public long append(ByteBuffer src) throws IOException {
+        synchronized (closeLock) {
+            final int len = src.remaining();
+            final long position = claim(len);
+            segment.putBytes(offset(position) + HEADER_SIZE, src, len);
+            return commit(position, len);
+        }
+    }
+
+    /**
+     * Appends a record copied from a ring.
+     */
+    long append(MappedMemory src, int offset, int len) throws IOException {
+        synchronized (closeLock) {
+            final long position = claim(len);
+            segment.putBytes(offset(position) + HEADER_SIZE, src, offset, len);
+            return commit(position, len);
+        }
+    }
+
+    private static void checkBounds(byte[] b, int off, int len) {
+        if (b == null) {
+            throw new NullPointerException();
+        } else if ((off < 0) || (off > b.length) || (len < 0) ||
+                ((off + len) > b.length) || ((off + len) < 0)) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /**
+     * @return the length of the largest record
+     */
+    public int getMaxRecordLength() {
+        return segmentSize - HEADER_SIZE;
+    }
+
+    /**
+     * @return the position the next record is appended at
+     */
+    public long getTailPosition() {
+        synchronized (closeLock) {
+            return tail;
+        }
+    }
+
+    /**
+     * @return the position of the oldest record retained
+     */
+    public long getStartPosition() {
+        synchronized (closeLock) {
+            return start;
+        }
+    }
+
+    /**
+     * Writes the appended records back to the disk.
+     */
+    public void flush() throws IOException {
+        synchronized (closeLock) {
+            checkOpen();
+            if (segment != null) {
+                segment.force();
+                index.force();
+            }
+            control.force();
+        }
+    }
+
+    /**
+     * Pads the current segment if the record does not fit in, then maps the segment and indexes the record.
+     *
+     * @return the position of the record
+     */
+    private long claim(int len) throws IOException {
+        checkOpen();
+        if (len > getMaxRecordLength()) {
+            throw new IllegalArgumentException("Record too large : " + len);
+        }
+        final int remaining = segmentSize - offset(tail);
+        if (segment != null && recordLength(len) > remaining) {
+            segment.putInt(offset(tail), -remaining);
+            tail += remaining;
+            control.putLongOrdered(TAIL_OFFSET, tail);
+        }
+        if (offset(tail) == 0) {
+            openSegment(tail);
+            deleteExpiredSegments();
+        }
+        if (indexEntries == 0 || tail - lastIndexed >= INDEX_INTERVAL) {
+            final int entry = indexEntries++ * INDEX_ENTRY_SIZE;
+            index.putLongOrdered(entry + 8, tail);
+            index.putLongOrdered(entry, System.currentTimeMillis());
+            lastIndexed = tail;
+        }
+        return tail;
+    }
+
+    private long commit(long position, int len) {
+        segment.putInt(offset(position), len);
+        tail = position + recordLength(len);
+        control.putLongOrdered(TAIL_OFFSET, tail);
+        return position;
+    }
+
+    private int offset(long position) {
+        return (int) position & (segmentSize - 1);
+    }
+
+    static int recordLength(int length) {
+        return (HEADER_SIZE + length + SMSocketOptions.MIN_ALIGNMENT - 1) & -SMSocketOptions.MIN_ALIGNMENT;
+    }
+
+    /**
+     * Maps the segment and the index starting at the given position, creating them if needed.
+     */
+    private void openSegment(long base) throws IOException {
+        final MappedMemory _segment;
+        final MappedMemory _index;
+        try (FileChannel fc = FileChannel.open(segmentPath(directory, base), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel indexFC = FileChannel.open(indexPath(directory, base), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            _segment = new MappedMemory(fc, 0, segmentSize);
+            _index = new MappedMemory(indexFC, 0, indexSize(segmentSize));
+        }
+        /* The previous segment is full, nothing is appended to it anymore */
+        unmapSegment();
+        segment = _segment;
+        index = _index;
+        /* Entries left by a previous writer */
+        indexEntries = 0;
+        while (indexEntries * INDEX_ENTRY_SIZE < index.size() && index.getLongVolatile(indexEntries * INDEX_ENTRY_SIZE) != 0) {
+            lastIndexed = index.getLongVolatile(indexEntries++ * INDEX_ENTRY_SIZE + 8);
+        }
+    }
+
+    /**
+     * Deletes the oldest segments while the journal is larger than its retention size, or they are older than its
+     * retention age, never deleting the segment being appended to.
+     */
+    private void deleteExpiredSegments() throws IOException {
+        final List<Long> bases = segments(directory);
+        final long current = tail & -segmentSize;
+        final long now = System.currentTimeMillis();
+        int deleted = 0;
+        while (deleted < bases.size() && bases.get(deleted) != current) {
+            final long base = bases.get(deleted);
+            final boolean tooLarge = retentionSize > 0 && (long) (bases.size() - deleted) * segmentSize > retentionSize;
+            final boolean tooOld = retentionMillis > 0 && now - lastIndexTime(base) > retentionMillis;
+            if (!tooLarge && !tooOld) {
+                break;
+            }
+            /* Published first, so that readers do not start from a segment being deleted */
+            publishStart(deleted + 1 < bases.size() ? bases.get(deleted + 1) : current);
+            try {
+                Files.deleteIfExists(segmentPath(directory, base));
+                Files.deleteIfExists(indexPath(directory, base));
+            } catch (IOException e) {
+                /* Still mapped by a reader on some platforms, deleted on a later attempt */
+                LOGGER.log(Level.FINE, "Cannot delete journal segment " + base + " yet", e);
+                break;
+            }
+            ++deleted;
+        }
+        if (deleted == 0 && !bases.isEmpty()) {
+            publishStart(bases.get(0));
+        }
+        if (deleted > 0 && LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Deleted " + deleted + " journal segments of " + directory);
+        }
+    }
+
+    private void publishStart(long start) {
+        this.start = start;
+        control.putLongOrdered(START_OFFSET, start);
+    }
+
+    /**
+     * @return the time of the last index entry of the given segment, or 0 if it has none
+     */
+    private long lastIndexTime(long base) throws IOException {
+        try (FileChannel fc = FileChannel.open(indexPath(directory, base), StandardOpenOption.READ)) {
+            final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE).order(java.nio.ByteOrder.nativeOrder());
+            long time = 0;
+            for (long offset = 0; fc.read(entry, offset) == INDEX_ENTRY_SIZE; offset += INDEX_ENTRY_SIZE) {
+                final long _time = entry.getLong(0);
+                if (_time == 0) {
+                    break;
+                }
+                time = _time;
+                entry.clear();
+            }
+            return time;
+        }
+    }
+
+    /**
+     * @return the first positions of the segments of the journal of the given directory, in ascending order
+     */
+    static List<Long> segments(Path directory) throws IOException {
+        final List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - 4)));
+                } catch (NumberFormatException e) {
+                    /* Not a segment */
+                }
+            }
+        }
+        Collections.sort(bases);
+        return bases;
+    }
+
+    static Path segmentPath(Path directory, long base) {
+        return directory.resolve(String.format("%020d.log", base));
+    }
+
+    static Path indexPath(Path directory, long base) {
+        return directory.resolve(String.format("%020d.idx", base));
+    }
+
+    static int indexSize(int segmentSize) {
+        return (segmentSize / INDEX_INTERVAL + 1) * INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * Maps the control file of the journal of the given directory, failing if none has been created.
+     */
+    static MappedMemory openControl(Path directory) throws IOException {
+        try (FileChannel fc = FileChannel.open(directory.resolve(CONTROL_FILE), StandardOpenOption.READ)) {
+            final MappedMemory control = new MappedMemory(fc, FileChannel.MapMode.READ_ONLY, 0, CONTROL_SIZE);
+            if (control.getIntVolatile(MAGIC_OFFSET) != MAGIC) {
+                throw new IOException("No journal in " + directory);
+            }
+            return control;
+        }
+    }
+
+    static int segmentSize(MappedMemory control) {
+        return control.getInt(SEGMENT_SIZE_OFFSET);
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Journal is closed");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (closeLock) {
+            if (closed)
+                return;
+            closed = true;
+            unmapSegment();
+            control.unmap();
+            writerLock.release();
+            controlFC.close();
+        }
+    }
+
+    private void unmapSegment() {
+        if (segment != null) {
+            segment.unmap();
+            index.unmap();
+            segment = null;
+            index = null;
+        }
+    }
+
+    public boolean isClosed() {
+        synchronized (closeLock) {
+            return closed;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.donarproject.smocket.SMStream.HEADER_SIZE;
+
+/**
+ * Reader of a {@link SMJournal}, replaying its records from a given position then tailing the ones appended live.
+ * <p>
+ * Readers do not hold anything back : the segments they read may be deleted by the retention of the journal, in
+ * which case reading fails. Positions given to a reader must be ones of records, as returned by
+ * {@link SMJournal#append(ByteBuffer)}, {@link #getPosition()} or {@link #seek(long)}.
+ */
+public class SMJournalReader implements Closeable {
+    private final Path directory;
+    private final MappedMemory control;
+    private final int segmentSize;
+    private final WaitStrategy waitStrategy;
+    private long position;
+    /* Last writer position read from the journal */
+    private long tail;
+    /* Oldest position retained, read from the journal until closed */
+    private long start;
+    /* Segment holding the position and its read only view, null until mapped */
+    private MappedMemory segment;
+    private ByteBuffer view;
+    private long segmentBase = -1;
+    private boolean closed = false;
+    private final Object closeLock = new Object();
+
+    /**
+     * Reads the journal of the given directory from the given position.
+     */
+    public SMJournalReader(Path directory, long position) throws IOException {
+        this(directory, position, new SMSocketOptions());
+    }
+
+    /**
+     * Reads the journal of the given directory from the given position, waiting for records with the wait strategy
+     * of the given options.
+     */
+    public SMJournalReader(Path directory, long position, SMSocketOptions options) throws IOException {
+        this.directory = directory;
+        this.control = SMJournal.openControl(directory);
+        this.segmentSize = SMJournal.segmentSize(control);
+        this.waitStrategy = options.getWaitStrategy();
+        this.tail = control.getLongVolatile(SMJournal.TAIL_OFFSET);
+        seek(position);
+    }
+
+    /**
+     * Moves to the record at the given position.
+     */
+    public void seek(long position) throws IOException {
+        synchronized (closeLock) {
+            checkOpen();
+            if (position < getStartPosition() || position > (tail = control.getLongVolatile(SMJournal.TAIL_OFFSET))) {
+                throw new IOException("Position " + position + " is out of the journal, from " + getStartPosition() + " to " + tail);
+            }
+            this.position = position;
+        }
+    }
+
+    /**
+     * Moves to a record appended before the given time, at most an index interval before the first one appended at
+     * or after it.
+     *
+     * @param time milliseconds since the epoch
+     */
+    public void seekTime(long time) throws IOException {
+        synchronized (closeLock) {
+            checkOpen();
+            final long start = getStartPosition();
+            /* Records following the last entry indexed before the time may have been appended after it */
+            long previous = start;
+            for (long base : SMJournal.segments(directory)) {
+                if (base + segmentSize <= start) {
+                    continue;
+                }
+                final MappedMemory index;
+                try (FileChannel fc = FileChannel.open(SMJournal.indexPath(directory, base), StandardOpenOption.READ)) {
+                    index = new MappedMemory(fc, FileChannel.MapMode.READ_ONLY, 0, SMJournal.indexSize(segmentSize));
+                } catch (NoSuchFileException e) {
+                    /* Deleted meanwhile */
+                    continue;
+                }
+                try {
+                    for (int entry = 0; entry < index.size(); entry += SMJournal.INDEX_ENTRY_SIZE) {
+                        final long _time = index.getLongVolatile(entry);
+                        if (_time == 0) {
+                            break;
+                        }
+                        if (_time >= time) {
+                            seek(Math.max(previous, start));
+                            return;
+                        }
+                        previous = index.getLongVolatile(entry + 8);
+                    }
+                } finally {
+                    index.unmap();
+                }
+            }
+            seek(Math.max(previous, start));
+        }
+    }
+
+    /**
+     * Hands the records already appended to the given handler straight from the journal, without waiting.
+     * <p>
+     * The handler receives a read only view of the segment whose position and limit frame the record, only valid
+     * until it returns.
+     *
+     * @param limit maximum number of records to handle
+     * @return the number of records handled
+     * @throws IOException if the record to read has been deleted by the retention of the journal
+     */
+    public int poll(RecordHandler handler, int limit) throws IOException {
+        /* Held while reading, so that closing does not unmap the segment under the handler */
+        synchronized (closeLock) {
+            checkOpen();
+            int count = 0;
+            while (count < limit) {
+                if (position == tail && (tail = control.getLongVolatile(SMJournal.TAIL_OFFSET)) == position) {
+                    break;
+                }
+                final MappedMemory _segment = segment(position);
+                final int offset = (int) position & (segmentSize - 1);
+                final int length = _segment.getInt(offset);
+                if (length < 0) {
+                    /* Padding up to the end of the segment */
+                    position -= length;
+                    continue;
+                }
+                view.clear();
+                view.position(offset + HEADER_SIZE).limit(offset + HEADER_SIZE + length);
+                handler.onRecord(view, offset + HEADER_SIZE, length);
+                position += SMJournal.recordLength(length);
+                ++count;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Waits for a record then hands the records already appended to the given handler, as
+     * {@link #poll(RecordHandler, int)} does.
+     *
+     * @param limit maximum number of records to handle
+     * @return the number of records handled
+     */
+    public int take(RecordHandler handler, int limit) throws IOException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive : " + limit);
+        }
+        int attempt = 0;
+        int count;
+        while ((count = poll(handler, limit)) == 0) {
+            waitStrategy.idle(attempt++);
+        }
+        return count;
+    }
+
+    /**
+     * @return the position of the next record to read, to resume from
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the position of the oldest record retained
+     */
+    public long getStartPosition() {
+        synchronized (closeLock) {
+            return closed ? start : (start = control.getLongVolatile(SMJournal.START_OFFSET));
+        }
+    }
+
+    /**
+     * @return the position the next record will be appended at
+     */
+    public long getTailPosition() {
+        synchronized (closeLock) {
+            return closed ? tail : (tail = control.getLongVolatile(SMJournal.TAIL_OFFSET));
+        }
+    }
+
+    /**
+     * @return the segment holding the given position, mapped if needed
+     */
+    private MappedMemory segment(long position) throws IOException {
+        final long base = position & -segmentSize;
+        if (base != segmentBase) {
+            final MappedMemory _segment;
+            try (FileChannel fc = FileChannel.open(SMJournal.segmentPath(directory, base), StandardOpenOption.READ)) {
+                _segment = new MappedMemory(fc, FileChannel.MapMode.READ_ONLY, 0, segmentSize);
+            } catch (NoSuchFileException e) {
+                throw new IOException("Position " + position + " has been deleted from the journal, which starts at " + getStartPosition(), e);
+            }
+            unmapSegment();
+            segment = _segment;
+            view = segment.buffer().asReadOnlyBuffer();
+            segmentBase = base;
+        }
+        return segment;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Journal reader is closed");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (closeLock) {
+            if (closed)
+                return;
+            start = control.getLongVolatile(SMJournal.START_OFFSET);
+            tail = control.getLongVolatile(SMJournal.TAIL_OFFSET);
+            closed = true;
+            unmapSegment();
+            control.unmap();
+        }
+    }
+
+    private void unmapSegment() {
+        if (segment != null) {
+            segment.unmap();
+            segment = null;
+            view = null;
+            segmentBase = -1;
+        }
+    }
+
+    public boolean isClosed() {
+        synchronized (closeLock) {
+            return closed;
+        }
+    }
+}
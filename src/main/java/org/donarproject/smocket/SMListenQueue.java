@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import static org.donarproject.smocket.SMStream.CACHE_LINE;
+
+/**
+ * Queue of the connection requests of a {@link SMServerSocket}, laid out over the file of its port.
+ * <p>
+ * Clients create their session file in the directory published by the server, then enqueue its name, the server
+ * dequeues them. It is a bounded queue of slots, each one on its own pair of cache lines and holding a sequence
+ * number : a client claims a slot with a compare and swap of the tail, writes the name then publishes it with a
+ * compare and swap of the sequence number of the slot. The server frees a slot for the next lap by moving its
+ * sequence number a capacity ahead. A slot claimed by a client that
+ * never published it is skipped once {@link #ABANDON_TIMEOUT_NANOS} old, the client failing to connect if it
+ * publishes it afterwards.
+ * <p>
+ * Clients wait for the server to flag itself as accepting before enqueuing, so that any number of them connect
+ * concurrently, from one or several processes, without taking a lock.
+ */
+final class SMListenQueue {
+    private final static Logger LOGGER = Logger.getLogger(SMListenQueue.class.getName());
+
+    static final int CAPACITY = 1 << 8;
+    static final int MAX_NAME_LENGTH = 2 * CACHE_LINE - 12;
+    private static final long ABANDON_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int SESSION_DIRECTORY_LENGTH_OFFSET = 8;
+    private static final int ACCEPTING_OFFSET = 12;
+    private static final int TAIL_OFFSET = 2 * CACHE_LINE;
+    private static final int SLOTS_OFFSET = 4 * CACHE_LINE;
+    private static final int SLOT_SIZE = 2 * CACHE_LINE;
+    private static final int SEQUENCE_OFFSET = 0;
+    private static final int LENGTH_OFFSET = 8;
+    private static final int NAME_OFFSET = 12;
+    /* Path of the session directory, after the slots */
+    private static final int MAX_SESSION_DIRECTORY_LENGTH = 1 << 12;
+
+    private static final int MAGIC = 0x534d4c51; //SMLQ
+
+    private final MappedMemory memory;
+    private final int capacity;
+    /* Next slot to dequeue, only used by the server */
+    private long head;
+    /* Time the slot at the head has been found claimed but not published since, if stalled */
+    private long stalledSince;
+    private boolean stalled = false;
+
+    private SMListenQueue(MappedMemory memory, int capacity) {
+        this.memory = memory;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Maps a new empty queue over the given file and publishes it.
+     *
+     * @param capacity         number of slots, a power of 2
+     * @param sessionDirectory directory the clients create their session file in
+     */
+    static SMListenQueue create(FileChannel fc, int capacity, Path sessionDirectory) throws IOException {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Listen queue capacity must be a power of 2 : " + capacity);
+        }
+        final byte[] path = sessionDirectory.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8);
+        if (path.length > MAX_SESSION_DIRECTORY_LENGTH) {
+            throw new IOException("Session directory path is too long : " + sessionDirectory);
+        }
+        SMListenQueue queue = new SMListenQueue(new MappedMemory(fc, 0, size(capacity)), capacity);
+        for (int i = 0; i < capacity; ++i) {
+            queue.memory.putLongOrdered(SLOTS_OFFSET + i * SLOT_SIZE + SEQUENCE_OFFSET, i);
+        }
+        queue.memory.putBytes(SLOTS_OFFSET + capacity * SLOT_SIZE, path, 0, path.length);
+        queue.memory.putInt(SESSION_DIRECTORY_LENGTH_OFFSET, path.length);
+        queue.memory.putInt(CAPACITY_OFFSET, capacity);
+        queue.memory.putIntOrdered(MAGIC_OFFSET, MAGIC);
+        return queue;
+    }
+
+    /**
+     * Maps the queue created over the given file, waiting for it to be published.
+     */
+    static SMListenQueue open(FileChannel fc, long timeout, TimeUnit unit) throws IOException, TimeoutException {
+        final MappedMemory header = new MappedMemory(fc, 0, SLOTS_OFFSET);
+        final int capacity;
+        try {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            int attempt = 0;
+            while (header.getIntVolatile(MAGIC_OFFSET) != MAGIC) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new TimeoutException("Timeout exceeded while waiting for the listen queue to be created");
+                }
+                SMRing.idle(attempt++);
+            }
+            capacity = header.getInt(CAPACITY_OFFSET);
+        } finally {
+            header.unmap();
+        }
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IOException("Corrupted listen queue : " + capacity);
+        }
+        return new SMListenQueue(new MappedMemory(fc, 0, size(capacity)), capacity);
+    }
+
+    private static int size(int capacity) {
+        return SLOTS_OFFSET + capacity * SLOT_SIZE + MAX_SESSION_DIRECTORY_LENGTH;
+    }
+
+    /**
+     * @return the directory the clients create their session file in
+     */
+    Path sessionDirectory() throws IOException {
+        final int length = memory.getInt(SESSION_DIRECTORY_LENGTH_OFFSET);
+        if (length <= 0 || length > MAX_SESSION_DIRECTORY_LENGTH) {
+            throw new IOException("Corrupted listen queue session directory : " + length);
+        }
+        final byte[] path = new byte[length];
+        memory.getBytes(SLOTS_OFFSET + capacity * SLOT_SIZE, path, 0, length);
+        return Paths.get(new String(path, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Lets the clients enqueue their requests. Only called by the server.
+     */
+    void startAccepting() {
+        memory.putIntOrdered(ACCEPTING_OFFSET, 1);
+    }
+
+    /**
+     * Waits for the server to accept connections.
+     */
+    void awaitAccepting(long timeout, TimeUnit unit) throws IOException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int attempt = 0;
+        while (memory.getIntVolatile(ACCEPTING_OFFSET) == 0) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new TimeoutException("Timeout exceeded while waiting for the server to accept connections");
+            }
+            SMRing.idle(attempt++);
+        }
+    }
+
+    /**
+     * Enqueues the name of a session file, waiting for a free slot if the queue is full.
+     *
+     * @throws IOException if the server skipped the slot before it was published
+     */
+    void offer(String name, long timeout, TimeUnit unit) throws IOException, TimeoutException {
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Session name is too long : " + name);
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int attempt = 0;
+        for (; ; ) {
+            final long tail = memory.getLongVolatile(TAIL_OFFSET);
+            final int slot = slot(tail);
+            final long sequence = memory.getLongVolatile(slot + SEQUENCE_OFFSET);
+            if (sequence == tail) {
+                if (memory.compareAndSwapLong(TAIL_OFFSET, tail, tail + 1)) {
+                    memory.putInt(slot + LENGTH_OFFSET, bytes.length);
+                    memory.putBytes(slot + NAME_OFFSET, bytes, 0, bytes.length);
+                    if (!memory.compareAndSwapLong(slot + SEQUENCE_OFFSET, tail, tail + 1)) {
+                        throw new IOException("Connection request abandoned by the server");
+                    }
+                    return;
+                }
+            } else if (sequence < tail) {
+                /* Not dequeued yet since the previous lap */
+                if (System.nanoTime() - deadline > 0) {
+                    throw new TimeoutException("Timeout exceeded while waiting for room in the listen queue");
+                }
+                SMRing.idle(attempt++);
+            }
+            /* Claimed by another client otherwise */
+        }
+    }
+
+    /**
+     * Dequeues the name of a session file, without waiting. Only called by the server.
+     *
+     * @return the name, or null if the queue is empty or the request was malformed
+     */
+    String poll() {
+        final int slot = slot(head);
+        final long sequence = memory.getLongVolatile(slot + SEQUENCE_OFFSET);
+        if (sequence == head + 1) {
+            /* Written by another process */
+            final int length = memory.getInt(slot + LENGTH_OFFSET);
+            final byte[] bytes = length > 0 && length <= MAX_NAME_LENGTH ? new byte[length] : null;
+            if (bytes != null) {
+                memory.getBytes(slot + NAME_OFFSET, bytes, 0, length);
+            }
+            memory.putLongOrdered(slot + SEQUENCE_OFFSET, head + capacity);
+            ++head;
+            stalled = false;
+            if (bytes == null) {
+                LOGGER.warning("Skipped a connection request of invalid length : " + length);
+                return null;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        if (sequence == head && memory.getLongVolatile(TAIL_OFFSET) != head) {
+            /* Claimed but not published yet */
+            final long now = System.nanoTime();
+            if (!stalled) {
+                stalled = true;
+                stalledSince = now;
+            } else if (now - stalledSince > ABANDON_TIMEOUT_NANOS && memory.compareAndSwapLong(slot + SEQUENCE_OFFSET, head, head + capacity)) {
+                LOGGER.warning("Skipped a connection request never published");
+                ++head;
+                stalled = false;
+            }
+        }
+        return null;
+    }
+
+    void unmap() {
+        memory.unmap();
+    }
+
+    private int slot(long position) {
+        return SLOTS_OFFSET + (int) (position & (capacity - 1)) * SLOT_SIZE;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Message oriented view of a {@link SMSocket}.
+ * <p>
+ * Each message is sent as a single ring record, so its boundaries are kept end to end without any framing of its
+ * own : messages are received one record at a time, straight from the ring.
+ */
+public class SMMessageSocket implements Closeable {
+    private final SMSocket socket;
+    private final SMInputStream in;
+    private final SMOutputStream out;
+
+    public SMMessageSocket(String hostname, String port) throws IOException {
+        this(new SMSocket(hostname, port));
+    }
+
+    public SMMessageSocket(String hostname, String port, SMSocketOptions options) throws IOException {
+        this(new SMSocket(hostname, port, options));
+    }
+
+    /**
+     * Wraps a connected or accepted socket. Its streams must not be used anymore.
+     */
+    public SMMessageSocket(SMSocket socket) throws IOException {
+        this.socket = socket;
+        this.in = socket.getSMInputStream();
+        this.out = socket.getSMOutputStream();
+    }
+
+    /**
+     * Sends the remaining bytes of the given buffer as one message, waiting according to the ring full policy.
+     *
+     * @throws IllegalArgumentException if the message is larger than {@link #getMaxMessageSize()}
+     */
+    public void send(ByteBuffer message) throws IOException {
+        checkOpen();
+        out.writeRecord(message);
+    }
+
+    /**
+     * Waits for a message then hands the messages already received to the given handler.
+     *
+     * @return the number of messages handled, or -1 once the remote end point is closed
+     */
+    public int receive(RecordHandler handler) throws IOException {
+        return receive(handler, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Waits for a message then hands at most the given number of messages already received to the given handler.
+     *
+     * @return the number of messages handled, or -1 once the remote end point is closed
+     */
+    public int receive(RecordHandler handler, int limit) throws IOException {
+        checkOpen();
+        return in.take(handler, limit);
+    }
+
+    /**
+     * Hands at most the given number of messages already received to the given handler, without waiting.
+     *
+     * @return the number of messages handled, or -1 once the remote end point is closed
+     */
+    public int poll(RecordHandler handler, int limit) throws IOException {
+        checkOpen();
+        return in.poll(handler, limit);
+    }
+
+    /**
+     * @return the size of the largest message that can be sent
+     */
+    public int getMaxMessageSize() {
+        return out.getMaxClaimLength();
+    }
+
+    public SMSocket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    private void checkOpen() throws IOException {
+        if (socket.isClosed()) {
+            throw new IOException("Socket is closed");
+        }
+    }
+}
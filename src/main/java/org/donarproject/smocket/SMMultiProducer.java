@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.donarproject.smocket.SMStream.HEADER_SIZE;
+
+/**
+ * Writes of a {@link SMOutputStream} shared by several threads.
+ * <p>
+ * Each write is a single record, claimed with a compare and swap of the claim position of the ring so that
+ * writers copy their records concurrently, then committed with an ordered store of its header. Writers never wait
+ * for each other, the reader waiting for the records in the order they were claimed. Empty writes are dropped, a
+ * zero header marking a record not committed yet.
+ */
+final class SMMultiProducer {
+    private final SMRing ring;
+    private final RingFullPolicy policy;
+    private final WaitStrategy waitStrategy;
+    /* Copy of the records written, null if journaling is disabled */
+    private final SMJournal journal;
+    /* Last reader position read from the ring */
+    private volatile long head;
+
+    SMMultiProducer(SMRing ring, RingFullPolicy policy, WaitStrategy waitStrategy, SMJournal journal) {
+        this.ring = ring;
+        this.policy = policy;
+        this.waitStrategy = waitStrategy;
+        this.journal = journal;
+        this.head = ring.head();
+    }
+
+    void write(int b) throws IOException {
+        final long start = claim(1, true);
+        final long position = start + skipped(start, 1);
+        ring.memory(position).putByte(ring.offset(position) + HEADER_SIZE, (byte) b);
+        publish(start, position, 1);
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        if (checkLength(len) == 0) {
+            return;
+        }
+        final long start = claim(len, true);
+        final long position = start + skipped(start, len);
+        ring.memory(position).putBytes(ring.offset(position) + HEADER_SIZE, b, off, len);
+        publish(start, position, len);
+    }
+
+    /**
+     * @return the number of bytes written, 0 if the ring is full
+     */
+    int tryWrite(byte[] b, int off, int len) throws IOException {
+        if (checkLength(len) == 0) {
+            return 0;
+        }
+        final long start = claim(len, false);
+        if (start < 0) {
+            return 0;
+        }
+        final long position = start + skipped(start, len);
+        ring.memory(position).putBytes(ring.offset(position) + HEADER_SIZE, b, off, len);
+        publish(start, position, len);
+        return len;
+    }
+
+    long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long len = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            len += srcs[i].remaining();
+        }
+        if (checkLength(len) == 0) {
+            return 0;
+        }
+        final long start = claim((int) len, true);
+        final long position = start + skipped(start, (int) len);
+        final MappedMemory memory = ring.memory(position);
+        int _offset = ring.offset(position) + HEADER_SIZE;
+        for (int i = offset; i < offset + length; ++i) {
+            final int remaining = srcs[i].remaining();
+            memory.putBytes(_offset, srcs[i], remaining);
+            _offset += remaining;
+        }
+        publish(start, position, (int) len);
+        return len;
+    }
+
+    /**
+     * @return the length of the largest write, each write being a single record
+     */
+    int getMaxLength() {
+        return (ring.segmentSize() >> 1) - ring.maxPadding() - HEADER_SIZE;
+    }
+
+    private long checkLength(long len) {
+        if (len > getMaxLength()) {
+            throw new IllegalArgumentException("Writes of a multi producer stream are limited to " + getMaxLength() + " bytes : " + len);
+        }
+        return len;
+    }
+
+    /**
+     * @return the number of bytes skipped before a record of the given length claimed at the given position
+     */
+    private int skipped(long start, int length) {
+        final int remaining = ring.remaining(start);
+        final int padding = ring.padding(start, length);
+        /* A record never wraps, the end of the segment is padded if needed */
+        return padding + ring.recordLength(length) <= remaining ? padding : remaining;
+    }
+
+    /**
+     * Claims room for a record of the given length and the padding before it, the ring being kept mapped until the
+     * record is published.
+     *
+     * @return the claimed position, or -1 if the reader does not leave enough room and not waiting
+     */
+    private long claim(int length, boolean wait) throws IOException {
+        final SMRing _ring = ring;
+        _ring.acquire();
+        long start = -1;
+        try {
+            start = _claim(length, wait);
+            return start;
+        } finally {
+            if (start < 0) {
+                _ring.release();
+            }
+        }
+    }
+
+    private long _claim(int length, boolean wait) throws IOException {
+        final SMRing _ring = ring;
+        final int recordLength = _ring.recordLength(length);
+        int attempt = 0;
+        for (; ; ) {
+            final long start = _ring.claimTail();
+            final long end = start + skipped(start, length) + recordLength;
+            if (end - head <= _ring.capacity() || end - (head = _ring.head()) <= _ring.capacity()) {
+                if (_ring.casClaimTail(start, end)) {
+                    return start;
+                }
+                /* Claimed by another writer */
+                continue;
+            }
+            if (!wait) {
+                return -1;
+            }
+            if (_ring.isReaderClosed()) {
+                throw new IOException("Stream closed by the reader");
+            }
+            if (_ring.isUnmapped()) {
+                throw new IOException("Stream closed");
+            }
+            if (policy == RingFullPolicy.FAIL) {
+                throw new IOException("Ring is full");
+            }
+            waitStrategy.idle(attempt++);
+        }
+    }
+
+    /**
+     * Commits the record written at the given position and the padding before it.
+     */
+    private void publish(long start, long position, int length) throws IOException {
+        final SMRing _ring = ring;
+        try {
+            if (journal != null) {
+                journal.append(_ring.memory(position), _ring.offset(position) + HEADER_SIZE, length);
+            }
+        } finally {
+            /* A claimed record is always committed, the reader waiting for it otherwise */
+            if (position != start) {
+                _ring.memory(start).putIntOrdered(_ring.offset(start), (int) (start - position));
+            }
+            _ring.memory(position).putIntOrdered(_ring.offset(position), length);
+            /* Acquired by the claim */
+            _ring.release();
+        }
+    }
+
+    /**
+     * Publishes the claimed position for the reader to detect the end of the stream, once every write returned.
+     */
+    void close() {
+        ring.publishTail(ring.claimTail());
+    }
+}
@@ -20,66 +20,153 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
 import java.nio.file.*;
-import java.util.HashSet;
 import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class SMOutputStream extends OutputStream implements SMStream {
-    private final static int REDUCED_CACHE_LINE = CACHE_LINE - HEADER_SIZE;
-    private final static int DOUBLE_REDUCED_CACHE_LINE = 2 * CACHE_LINE - HEADER_SIZE;
+    private final static Logger LOGGER = Logger.getLogger(SMOutputStream.class.getName());
+    /* Publishes the combined records of all the streams on their deadline */
+    private final static ScheduledThreadPoolExecutor combiningScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SMOutputStream write combining");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        /* Most deadlines are cancelled, the records being published before */
+        combiningScheduler.setRemoveOnCancelPolicy(true);
+    }
+
     private final FileChannel fc;
-    private int cursor;
-    private FileLock fileLock;
-    private MappedByteBuffer mbb;
-    private boolean closed = false;
+    private final RingFullPolicy policy;
+    private final WaitStrategy waitStrategy;
+    private final SMRing ring;
+    private long tail;
+    /* Last reader position read from the ring */
+    private long head;
+    /* Volatile so that writers waiting on a full ring give up as soon as closing starts */
+    private volatile boolean closed = false;
     private final Object closeLock = new Object();
+    /* Writable views of the segments of the ring handed to claimers, and the one of the pending claim */
+    private ByteBuffer[] claimViews;
+    private ByteBuffer claimView;
+    /* Length of the pending claim, -1 if none */
+    private int claimed = -1;
+    /* Writes smaller than the threshold are combined in a single record, 0 if disabled */
+    private final int combiningThreshold;
+    /* Guards the combined record against its publication on deadline, null if combining is disabled */
+    private final ReentrantLock combiningLock;
+    private final long combiningDelay;
+    /* Publication of the combined record on its deadline, null if none is open */
+    private ScheduledFuture<?> combiningDeadline;
+    /* True when the pending claim holds combined writes */
+    private boolean combining = false;
+    /* Writes of concurrent threads, null in single producer mode */
+    private final SMMultiProducer producers;
+    /* Copy of the records written, null if journaling is disabled */
+    private final SMJournal journal;
 
     public SMOutputStream(Path address) throws IOException {
-        Set<StandardOpenOption> options = new HashSet<>();
-        options.add(StandardOpenOption.DELETE_ON_CLOSE);
-        options.add(StandardOpenOption.WRITE);
-        options.add(StandardOpenOption.READ);
-        fc = FileSystems.getDefault().provider().newFileChannel(address, options);
-        prepareBuffer();
+        this(address, new SMSocketOptions());
+    }
+
+    public SMOutputStream(Path address, RingFullPolicy policy) throws IOException {
+        this(address, new SMSocketOptions().setRingFullPolicy(policy));
+    }
+
+    /**
+     * Creates a ring with the output ring size and alignment of the given options.
+     */
+    public SMOutputStream(Path address, SMSocketOptions options) throws IOException {
+        this(SMUtils.openExchangeFile(address), options);
     }
 
     public SMOutputStream(FileChannel fc) throws IOException {
-        this.fc = fc;
-        prepareBuffer();
+        this(fc, new SMSocketOptions());
     }
 
-    private void prepareBuffer() throws IOException {
-        mbb = fc.map(FileChannel.MapMode.READ_WRITE, 0, MAPPED_SIZE);
-        mbb.order(ByteOrder.nativeOrder());
-        cursor = 0;
-        fileLock = fc.lock(cursor, HEADER_SIZE, false);
-        mbb.putInt(0);
-        mbb.position(0);
+    public SMOutputStream(FileChannel fc, RingFullPolicy policy) throws IOException {
+        this(fc, new SMSocketOptions().setRingFullPolicy(policy));
+    }
+
+    /**
+     * Creates a ring with the output ring size and alignment of the given options.
+     */
+    public SMOutputStream(FileChannel fc, SMSocketOptions options) throws IOException {
+        this(fc, SMRing.create(fc, options.getOutputRingSize(), options.getRingSegments(), options.getAlignment(), options.getRecordFraming(), options.isMultiProducer(), SMRing.PAGE_SIZE), options);
+    }
+
+    SMOutputStream(FileChannel fc, SMRing ring, SMSocketOptions options) throws IOException {
+        this.fc = fc;
+        this.ring = ring;
+        this.policy = options.getRingFullPolicy();
+        this.waitStrategy = policy == RingFullPolicy.SPIN ? new BusySpinWaitStrategy() : options.getWaitStrategy();
+        tail = ring.tail();
+        head = ring.head();
+        ring.prefault(options.getRingPrefault(), true);
+        combiningThreshold = options.getWriteCombiningThreshold();
+        journal = options.getJournalDirectory() != null ? new SMJournal(options.getJournalDirectory(), options) : null;
+        if (ring.isMultiProducer()) {
+            if (combiningThreshold > 0) {
+                throw new IllegalArgumentException("Write combining is not supported by multi producer streams");
+            }
+            producers = new SMMultiProducer(ring, policy, waitStrategy, journal);
+        } else {
+            producers = null;
+        }
+        if (combiningThreshold > 0) {
+            combiningLock = new ReentrantLock();
+        } else {
+            combiningLock = null;
+        }
+        combiningDelay = options.getWriteCombiningDelay(TimeUnit.NANOSECONDS);
+        SMHeartbeat.start(ring);
     }
 
     @Override
     public void write(int b) throws IOException {
-        final MappedByteBuffer _mbb = mbb;
-        final FileLock _fileLock;
-        final FileLock _fileLock2;
-        _fileLock = fc.lock(cursor + HEADER_SIZE, REDUCED_CACHE_LINE, false);
-        _mbb.putInt(1);
-        _mbb.put((byte) b);
-        cursor += CACHE_LINE;
-        _fileLock2 = fc.lock(cursor, HEADER_SIZE, true);
-        if (fileLock != null) {
-            fileLock.release();
-        }
-        fileLock = _fileLock2;
-        _mbb.position(cursor);
-        _mbb.putInt(0);
-        _mbb.position(cursor);
-        _fileLock.release();
+        if (producers != null) {
+            producers.write(b);
+            return;
+        }
+        if (combiningLock != null) {
+            combine(b);
+            return;
+        }
+        checkNoClaim();
+        final SMRing _ring = ring;
+        _ring.acquire();
+        try {
+            if (policy == RingFullPolicy.FAIL && !hasSpace(1)) {
+                throw new IOException("Ring is full");
+            }
+            awaitSpace(_ring.recordLength(1), true);
+            final long _tail = tail;
+            final MappedMemory _memory = _ring.memory(_tail);
+            final int offset = _ring.offset(_tail);
+            /* A one byte record always fits in the alignment left before the end of the segment */
+            _memory.putInt(offset, 1);
+            _memory.putByte(offset + HEADER_SIZE, (byte) b);
+            if (journal != null) {
+                journal.append(_memory, offset + HEADER_SIZE, 1);
+            }
+            tail = _tail + _ring.recordLength(1);
+            _ring.publishTail(tail);
+        } finally {
+            _ring.release();
+        }
     }
 
     @Override
@@ -89,70 +176,500 @@ public class SMOutputStream extends OutputStream implements SMStream {
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
+        checkBounds(b, off, len);
+        if (producers != null) {
+            producers.write(b, off, len);
+            return;
+        }
+        if (combiningLock != null) {
+            if (len < combiningThreshold) {
+                combine(b, off, len);
+                return;
+            }
+            publishCombined();
+        }
+        checkNoClaim();
+        ring.acquire();
+        try {
+            if (policy == RingFullPolicy.FAIL && !hasSpace(len)) {
+                throw new IOException("Ring is full");
+            }
+            while (len > 0) {
+                final int written = _write(b, off, len, true);
+                off += written;
+                len -= written;
+            }
+        } finally {
+            ring.release();
+        }
+    }
+
+    /**
+     * Writes as many of the given bytes as the reader leaves room for, without waiting.
+     *
+     * @return the number of bytes written, 0 if the ring is full
+     */
+    public int tryWrite(byte[] b, int off, int len) throws IOException {
+        checkBounds(b, off, len);
+        if (producers != null) {
+            return producers.tryWrite(b, off, len);
+        }
+        publishCombined();
+        checkNoClaim();
+        ring.acquire();
+        try {
+            int written = 0;
+            while (written < len) {
+                final int _written = _write(b, off + written, len - written, false);
+                if (_written == 0) {
+                    break;
+                }
+                written += _written;
+            }
+            return written;
+        } finally {
+            ring.release();
+        }
+    }
+
+    /**
+     * Claims room in the ring for a record of the given length, for it to be written in place then published with
+     * {@link #commit()} or dropped with {@link #abort()}. Nothing else can be written until then.
+     *
+     * @param length length of the record, at most {@link #getMaxClaimLength()}
+     * @return a view of the ring whose position and limit frame the claimed record, only valid until the claim is
+     * committed or aborted, or null if the reader does not leave enough room
+     * @throws IllegalStateException in multi producer mode
+     */
+    public ByteBuffer tryClaim(int length) throws IOException {
+        if (producers != null) {
+            throw new IllegalStateException("Claims are not supported by multi producer streams");
+        }
+        publishCombined();
+        checkNoClaim();
+        if (length < 0 || length > getMaxClaimLength()) {
+            throw new IllegalArgumentException("Invalid claim length : " + length);
+        }
+        return claim(length, false) ? claimView : null;
+    }
+
+    /**
+     * Publishes the claimed record.
+     */
+    public void commit() throws IOException {
+        if (claimed < 0) {
+            throw new IllegalStateException("No pending claim");
+        }
+        final SMRing _ring = ring;
+        try {
+            _ring.memory(tail).putInt(_ring.offset(tail), claimed);
+            if (journal != null) {
+                journal.append(_ring.memory(tail), _ring.offset(tail) + HEADER_SIZE, claimed);
+            }
+            tail += _ring.recordLength(claimed);
+            _ring.publishTail(tail);
+        } finally {
+            claimed = -1;
+            /* Acquired by the claim */
+            _ring.release();
+        }
+    }
+
+    /**
+     * Drops the claimed record.
+     */
+    public void abort() {
+        if (claimed < 0) {
+            throw new IllegalStateException("No pending claim");
+        }
+        claimed = -1;
+        ring.release();
+    }
+
+    /**
+     * @return the length of the largest record that can be claimed
+     */
+    public int getMaxClaimLength() {
+        /* Any claim fits in an empty segment, even when the end of the previous one must be padded first */
+        return (ring.segmentSize() >> 1) - ring.maxPadding() - HEADER_SIZE;
+    }
+
+    private void checkNoClaim() {
+        if (claimed >= 0) {
+            throw new IllegalStateException("A claim is pending");
+        }
+    }
+
+    private static void checkBounds(byte[] b, int off, int len) {
         if (b == null) {
             throw new NullPointerException();
         } else if ((off < 0) || (off > b.length) || (len < 0) ||
                 ((off + len) > b.length) || ((off + len) < 0)) {
             throw new IndexOutOfBoundsException();
-        } else if (len == 0) {
+        }
+    }
+
+    /**
+     * Writes as much of the given bytes as fits before the end of the ring and the reader position in a single
+     * record.
+     *
+     * @return the number of bytes written
+     */
+    private int _write(byte[] b, int off, int len, boolean wait) throws IOException {
+        final SMRing _ring = ring;
+        final int padding = _ring.padding(tail, Math.min(len, _ring.remaining(tail) - HEADER_SIZE));
+        if (padding > 0 && !skip(padding, wait)) {
+            return 0;
+        }
+        final long _tail = tail;
+        final MappedMemory _memory = _ring.memory(_tail);
+        final int remaining = _ring.remaining(_tail);
+        final int free = awaitSpace(_ring.recordLength(Math.min(len, remaining - HEADER_SIZE)), wait);
+        if (free == 0) {
+            return 0;
+        }
+        final int _len = Math.min(len, Math.min(remaining, free) - HEADER_SIZE);
+        final int offset = _ring.offset(_tail);
+        /* Set the length of the byte stream */
+        _memory.putInt(offset, _len);
+        /* Write the byte stream */
+        _memory.putBytes(offset + HEADER_SIZE, b, off, _len);
+        if (journal != null) {
+            journal.append(_memory, offset + HEADER_SIZE, _len);
+        }
+        tail = _tail + _ring.recordLength(_len);
+        /* Make the record visible to the reader */
+        _ring.publishTail(tail);
+        return _len;
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer, in a single record if it holds at most
+     * {@link #getMaxClaimLength()} bytes.
+     */
+    int write(ByteBuffer src) throws IOException {
+        if (producers != null) {
+            return (int) producers.write(new ByteBuffer[]{src}, 0, 1);
+        }
+        publishCombined();
+        checkNoClaim();
+        final int len = src.remaining();
+        ring.acquire();
+        try {
+            if (policy == RingFullPolicy.FAIL && !hasSpace(len)) {
+                throw new IOException("Ring is full");
+            }
+            while (src.hasRemaining()) {
+                claim(Math.min(src.remaining(), getMaxClaimLength()), true);
+                put(src);
+                commit();
+            }
+        } finally {
+            ring.release();
+        }
+        return len;
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffers, in a single record if they hold at most
+     * {@link #getMaxClaimLength()} bytes.
+     */
+    long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (producers != null) {
+            return producers.write(srcs, offset, length);
+        }
+        publishCombined();
+        checkNoClaim();
+        long len = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            len += srcs[i].remaining();
+        }
+        ring.acquire();
+        try {
+            if (policy == RingFullPolicy.FAIL && (len > Integer.MAX_VALUE || !hasSpace((int) len))) {
+                throw new IOException("Ring is full");
+            }
+            long written = 0;
+            while (written < len) {
+                final int _len = (int) Math.min(len - written, getMaxClaimLength());
+                claim(_len, true);
+                for (int i = offset; i < offset + length && claimView.hasRemaining(); ++i) {
+                    put(srcs[i]);
+                }
+                commit();
+                written += _len;
+            }
+        } finally {
+            ring.release();
+        }
+        return len;
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer as a single record.
+     */
+    void writeRecord(ByteBuffer src) throws IOException {
+        if (producers != null) {
+            producers.write(new ByteBuffer[]{src}, 0, 1);
             return;
         }
-        final int paddedLength = getPaddedLength(len);
-        if (paddedLength + cursor + HEADER_SIZE > MAPPED_SIZE) {
-            int _len1 = MAPPED_SIZE - cursor - HEADER_SIZE;
-            _write(b, off, _len1, _len1);
-            write(b, off + _len1, len - _len1);
-        } else {
-            _write(b, off, len, paddedLength);
+        publishCombined();
+        checkNoClaim();
+        if (src.remaining() > getMaxClaimLength()) {
+            throw new IllegalArgumentException("Record too large : " + src.remaining());
         }
+        claim(src.remaining(), true);
+        put(src);
+        commit();
     }
 
-    private void _write(byte[] b, int off, int len, final int paddedLength) throws IOException {
-        assert (paddedLength + HEADER_SIZE) % 64 == 0;
-        final MappedByteBuffer _mbb = mbb;
-        final FileLock _fileLock;
-        final FileLock _fileLock2;
-        final int _position = cursor + HEADER_SIZE;
-        _fileLock = fc.lock(_position, paddedLength, false);
-        cursor = _position + paddedLength;
-        if (cursor == MAPPED_SIZE) {
-            cursor = 0;
+    private void combine(int b) throws IOException {
+        combiningLock.lock();
+        try {
+            openCombined(1);
+            claimView.put((byte) b);
+            if (!claimView.hasRemaining()) {
+                _publishCombined();
+            }
+        } finally {
+            combiningLock.unlock();
         }
-        assert cursor % 64 == 0;
-        final int _cursor = cursor;
-        /* Set the length of the next byte stream */
-        _mbb.putInt(len);
-        /* Write the byte stream */
-        _mbb.put(b, off, len);
-        _fileLock2 = fc.lock(_cursor, HEADER_SIZE, false);
-        if (fileLock != null) {
-            fileLock.release();
-        }
-        fileLock = _fileLock2;
-        _mbb.position(_cursor);
-        /* Set the next available length to 0 */
-        _mbb.putInt(0);
-        _mbb.position(_cursor);
-        _fileLock.release();
-    }
-
-    private static int getPaddedLength(int len) {
-        if (len <= REDUCED_CACHE_LINE) {
-            return REDUCED_CACHE_LINE;
-        } else if (len <= DOUBLE_REDUCED_CACHE_LINE) {
-            return DOUBLE_REDUCED_CACHE_LINE;
+    }
+
+    private void combine(byte[] b, int off, int len) throws IOException {
+        combiningLock.lock();
+        try {
+            openCombined(len);
+            claimView.put(b, off, len);
+            if (!claimView.hasRemaining()) {
+                _publishCombined();
+            }
+        } finally {
+            combiningLock.unlock();
+        }
+    }
+
+    /**
+     * Makes sure a combined record with room for the given number of bytes is open, publishing the current one if
+     * it is too small. Must be called with the combining lock held.
+     */
+    private void openCombined(int len) throws IOException {
+        if (combining) {
+            if (claimView.remaining() >= len) {
+                return;
+            }
+            _publishCombined();
+        }
+        checkNoClaim();
+        claim(Math.min(combiningThreshold, getMaxClaimLength()), true);
+        combining = true;
+        combiningDeadline = combiningScheduler.schedule(this::publishOnDeadline, combiningDelay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Publishes the combined record if one is open.
+     */
+    private void publishCombined() throws IOException {
+        if (combiningLock == null) {
+            return;
+        }
+        combiningLock.lock();
+        try {
+            _publishCombined();
+        } finally {
+            combiningLock.unlock();
+        }
+    }
+
+    private void _publishCombined() throws IOException {
+        if (combining) {
+            combining = false;
+            combiningDeadline.cancel(false);
+            combiningDeadline = null;
+            claimed = claimView.position() - ring.offset(tail) - HEADER_SIZE;
+            commit();
+        }
+    }
+
+    private void publishOnDeadline() {
+        if (combiningLock.tryLock()) {
+            try {
+                _publishCombined();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot publish the combined record", e);
+            } finally {
+                combiningLock.unlock();
+            }
+        } else if (!closed) {
+            /* Not blocking the scheduler on a writer waiting for room, whose record is published a delay later */
+            combiningScheduler.schedule(this::publishOnDeadline, combiningDelay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Copies as much of the given buffer as fits in the pending claim.
+     */
+    private void put(ByteBuffer src) {
+        final ByteBuffer _claimView = claimView;
+        if (src.remaining() <= _claimView.remaining()) {
+            _claimView.put(src);
         } else {
-            final int reste = (len - REDUCED_CACHE_LINE) % CACHE_LINE;
-            if (reste == 0) {
-                return len;
+            final int limit = src.limit();
+            src.limit(src.position() + _claimView.remaining());
+            _claimView.put(src);
+            src.limit(limit);
+        }
+    }
+
+    /**
+     * Claims a contiguous record of the given length, padding the end of the ring if needed, and frames it in
+     * {@code claimView}. The ring is kept mapped until the claim is committed or aborted.
+     *
+     * @return false if the reader does not leave enough room and not waiting
+     */
+    private boolean claim(int length, boolean wait) throws IOException {
+        final SMRing _ring = ring;
+        final int recordLength = _ring.recordLength(length);
+        final int remaining = _ring.remaining(tail);
+        final int padding = _ring.padding(tail, length);
+        /* A record never wraps, the end of the ring is padded if needed */
+        final int skipped = padding + recordLength <= remaining ? padding : remaining;
+        _ring.acquire();
+        boolean free = false;
+        try {
+            free = awaitFree(skipped + recordLength, wait);
+        } finally {
+            if (!free) {
+                _ring.release();
+            }
+        }
+        if (!free) {
+            return false;
+        }
+        if (skipped > 0) {
+            _ring.memory(tail).putInt(_ring.offset(tail), -skipped);
+            tail += skipped;
+            _ring.publishTail(tail);
+        }
+        if (claimViews == null) {
+            claimViews = new ByteBuffer[_ring.segmentCount()];
+        }
+        final int segment = _ring.segment(tail);
+        if (claimViews[segment] == null) {
+            claimViews[segment] = _ring.memory(tail).buffer();
+        }
+        claimView = claimViews[segment];
+        final int offset = _ring.offset(tail) + HEADER_SIZE;
+        claimView.clear();
+        claimView.position(offset).limit(offset + length);
+        claimed = length;
+        return true;
+    }
+
+    /**
+     * Writes padding of the given length, so that the next record starts on the alignment of the ring.
+     *
+     * @return false if the reader does not leave enough room and not waiting
+     */
+    private boolean skip(int padding, boolean wait) throws IOException {
+        if (!awaitFree(padding, wait)) {
+            return false;
+        }
+        final SMRing _ring = ring;
+        _ring.memory(tail).putInt(_ring.offset(tail), -padding);
+        tail += padding;
+        _ring.publishTail(tail);
+        return true;
+    }
+
+    /**
+     * Waits according to the policy until the reader leaves the given number of bytes free.
+     *
+     * @return false if the reader does not leave enough room and not waiting
+     */
+    private boolean awaitFree(long required, boolean wait) throws IOException {
+        final SMRing _ring = ring;
+        int attempt = 0;
+        while (!hasFree(required)) {
+            if (!wait) {
+                return false;
+            }
+            if (_ring.isReaderClosed()) {
+                throw new IOException("Stream closed by the reader");
+            }
+            if (closed || _ring.isUnmapped()) {
+                throw new IOException("Stream closed");
+            }
+            if (policy == RingFullPolicy.FAIL) {
+                throw new IOException("Ring is full");
             }
-            return len + CACHE_LINE - reste;
+            waitStrategy.idle(attempt++);
         }
+        return true;
+    }
+
+    /**
+     * @return true if the reader leaves room for the records holding the given number of bytes
+     */
+    private boolean hasSpace(int len) throws IOException {
+        final SMRing _ring = ring;
+        final int first = _ring.remaining(tail) - HEADER_SIZE;
+        /* Padding before a record moves as many bytes to the next one */
+        return hasFree(len <= first ? _ring.padding(tail, len) + _ring.recordLength(len)
+                : (long) _ring.remaining(tail) + _ring.recordLength(len - first) + _ring.maxPadding());
+    }
+
+    /**
+     * @return true if the reader leaves the given number of bytes free
+     */
+    private boolean hasFree(long required) {
+        final SMRing _ring = ring;
+        if (required > _ring.capacity() - (tail - head)) {
+            head = _ring.head();
+        }
+        return required <= _ring.capacity() - (tail - head);
+    }
+
+    /**
+     * Refreshes the reader position if less than the required bytes are known to be free, then waits according to
+     * the policy until the reader has released some of the ring.
+     *
+     * @return the number of free bytes in the ring, up to a segment, a multiple of the ring alignment, or 0 if full
+     * and not waiting
+     */
+    private int awaitSpace(int required, boolean wait) throws IOException {
+        final SMRing _ring = ring;
+        int free = free();
+        if (free >= required) {
+            return free;
+        }
+        int attempt = 0;
+        for (; ; ) {
+            head = _ring.head();
+            free = free();
+            if (free > 0 || !wait) {
+                return free;
+            }
+            if (_ring.isReaderClosed()) {
+                throw new IOException("Stream closed by the reader");
+            }
+            if (closed || _ring.isUnmapped()) {
+                throw new IOException("Stream closed");
+            }
+            if (policy == RingFullPolicy.FAIL) {
+                throw new IOException("Ring is full");
+            }
+            waitStrategy.idle(attempt++);
+        }
+    }
+
+    private int free() {
+        return (int) Math.min(ring.capacity() - (tail - head), ring.segmentSize());
     }
 
     @Override
     public void flush() throws IOException {
-        super.flush();
+        publishCombined();
     }
 
     @Override
@@ -160,12 +677,22 @@ public class SMOutputStream extends OutputStream implements SMStream {
         synchronized (closeLock) {
             if (isClosed())
                 return;
+            /* Before taking the combining lock, which a writer waiting for room holds until it gives up */
             closed = true;
-            mbb = null;
-            assert fileLock == null || fileLock.channel() == fc;
-            if (fileLock != null && fileLock.isValid() && fc.isOpen()) {
-                fileLock.release();
+            publishCombined();
+            /* The channel may be shared with the input stream of a single file session */
+            if (!ring.isUnmapped()) {
+                if (producers != null) {
+                    producers.close();
+                }
+                ring.closeWriter();
+            }
+            SMHeartbeat.stop(ring);
+            if (journal != null) {
+                journal.close();
             }
+            /* Once the threads still writing give up, a pending claim keeping the ring mapped until released */
+            ring.unmap();
             fc.close();
         }
     }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.donarproject.smocket.SMStream.HEADER_SIZE;
+
+/**
+ * Writer of a ring read by any number of {@link SMSubscriber}s, each message being written once whatever the number
+ * of subscribers.
+ * <p>
+ * Subscribers map the ring read only and publish their own cursor in a table following the ring. The publisher
+ * writes up to a ring capacity ahead of the slowest active subscriber, then blocks or drops it according to its
+ * {@link SlowSubscriberPolicy}. Without any subscriber, the oldest messages are overwritten.
+ */
+public class SMPublisher implements Closeable {
+    private final static Logger LOGGER = Logger.getLogger(SMPublisher.class.getName());
+    /* Number of idle attempts between two checks of a blocking subscriber */
+    private final static int LIVENESS_CHECK_MASK = (1 << 10) - 1;
+
+    private final FileChannel fc;
+    /* Created by this publisher and deleted once closed, null if the channel was given */
+    private final Path file;
+    private final SMRing ring;
+    private final SMCursorTable cursors;
+    private final SlowSubscriberPolicy policy;
+    private final WaitStrategy waitStrategy;
+    private long tail;
+    /* Lowest cursor of the active subscribers when last checked, nothing being written a ring capacity past it */
+    private long minCursor;
+    private long droppedSubscribers;
+    private boolean closed = false;
+    private final Object closeLock = new Object();
+
+    public SMPublisher(Path address) throws IOException {
+        this(address, new SMSocketOptions());
+    }
+
+    /**
+     * Creates a ring with the output ring size, alignment and subscriber options of the given options.
+     */
+    public SMPublisher(Path address, SMSocketOptions options) throws IOException {
+        this(SMUtils.createExchangeFile(address), address, options);
+    }
+
+    /**
+     * Creates a ring with the output ring size, alignment and subscriber options of the given options.
+     */
+    public SMPublisher(FileChannel fc, SMSocketOptions options) throws IOException {
+        this(fc, null, options);
+    }
+
+    private SMPublisher(FileChannel fc, Path file, SMSocketOptions options) throws IOException {
+        this.fc = fc;
+        this.file = file;
+        this.ring = SMRing.create(fc, options.getOutputRingSize(), options.getRingSegments(), options.getAlignment(), options.getRecordFraming(), false, SMRing.PAGE_SIZE);
+        this.policy = options.getSlowSubscriberPolicy();
+        this.cursors = SMCursorTable.create(fc, ring.mappedSize(), options.getMaxSubscribers(), policy);
+        this.waitStrategy = options.getWaitStrategy();
+        tail = minCursor = ring.tail();
+        ring.prefault(options.getRingPrefault(), true);
+    }
+
+    /**
+     * Publishes the remaining bytes of the given buffer as one message, waiting for slow subscribers according to
+     * the policy.
+     *
+     * @throws IllegalArgumentException if the message is larger than {@link #getMaxMessageSize()}
+     */
+    public void send(ByteBuffer message) throws IOException {
+        checkOpen();
+        final int length = checkLength(message.remaining());
+        final long position = claim(length);
+        ring.memory(position).putBytes(ring.offset(position) + HEADER_SIZE, message, length);
+        commit(length);
+    }
+
+    /**
+     * Publishes the given bytes as one message, waiting for slow subscribers according to the policy.
+     *
+     * @throws IllegalArgumentException if the message is larger than {@link #getMaxMessageSize()}
+     */
+    public void send(byte[] b, int off, int len) throws IOException {
+        checkBounds(b, off, len);
+        checkOpen();
+        final long position = claim(checkLength(len));
+        ring.memory(position).putBytes(ring.offset(position) + HEADER_SIZE, b, off, len);
+        commit(len);
+    }
+
+    /**
+     * @return the size of the largest message that can be published
+     */
+    public int getMaxMessageSize() {
+        /* Any message fits in an empty segment, even when the end of the previous one must be padded first */
+        return (ring.segmentSize() >> 1) - ring.maxPadding() - HEADER_SIZE;
+    }
+
+    /**
+     * @return the number of subscribers currently reading the ring
+     */
+    public int getSubscriberCount() {
+        int count = 0;
+        for (int i = 0; i < cursors.slots(); ++i) {
+            if (cursors.state(i) == SMCursorTable.ACTIVE) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of times a subscriber has been dropped for being too slow
+     */
+    public long getDroppedSubscribers() {
+        return droppedSubscribers;
+    }
+
+    private static void checkBounds(byte[] b, int off, int len) {
+        if (b == null) {
+            throw new NullPointerException();
+        } else if ((off < 0) || (off > b.length) || (len < 0) ||
+                ((off + len) > b.length) || ((off + len) < 0)) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    private int checkLength(int length) {
+        if (length > getMaxMessageSize()) {
+            throw new IllegalArgumentException("Message too large : " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Waits for the subscribers to leave room for a message of the given length, and pads the end of the segment if
+     * it does not fit in.
+     *
+     * @return the position of the message
+     */
+    private long claim(int length) throws IOException {
+        final SMRing _ring = ring;
+        final int recordLength = _ring.recordLength(length);
+        final int remaining = _ring.remaining(tail);
+        final int padding = _ring.padding(tail, length);
+        /* A record never wraps, the end of the segment is padded if needed */
+        final int skipped = padding + recordLength <= remaining ? padding : remaining;
+        awaitSubscribers(tail + skipped + recordLength);
+        if (skipped > 0) {
+            _ring.memory(tail).putInt(_ring.offset(tail), -skipped);
+            tail += skipped;
+        }
+        return tail;
+    }
+
+    private void commit(int length) {
+        final SMRing _ring = ring;
+        _ring.memory(tail).putInt(_ring.offset(tail), length);
+        tail += _ring.recordLength(length);
+        _ring.publishTail(tail);
+    }
+
+    /**
+     * Makes sure no active subscriber still has to read what lies a ring capacity before the given position.
+     */
+    private void awaitSubscribers(long end) throws IOException {
+        final long capacity = ring.capacity();
+        if (end - minCursor <= capacity) {
+            return;
+        }
+        int attempt = 0;
+        for (; ; ) {
+            /* A subscriber joining now starts from the current position */
+            long min = tail;
+            int lagging = -1;
+            for (int i = 0; i < cursors.slots(); ++i) {
+                if (cursors.state(i) != SMCursorTable.ACTIVE) {
+                    continue;
+                }
+                final long cursor = cursors.cursor(i);
+                if (end - cursor > capacity) {
+                    if (policy == SlowSubscriberPolicy.DROP) {
+                        if (cursors.casState(i, SMCursorTable.ACTIVE, SMCursorTable.DROPPED)) {
+                            ++droppedSubscribers;
+                            if (LOGGER.isLoggable(Level.FINE)) {
+                                LOGGER.fine("Dropped subscriber " + i + ", " + (tail - cursor) + "B behind");
+                            }
+                        }
+                        continue;
+                    }
+                    lagging = i;
+                }
+                if (cursor - min < 0) {
+                    min = cursor;
+                }
+            }
+            if (lagging < 0) {
+                minCursor = min;
+                return;
+            }
+            /* Only check the subscriber once idle, so that a live one is not slowed down */
+            if ((attempt & LIVENESS_CHECK_MASK) == LIVENESS_CHECK_MASK && cursors.releaseIfDead(lagging)) {
+                LOGGER.warning("Released the slot of dead subscriber " + lagging);
+            }
+            waitStrategy.idle(attempt++);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (isClosed()) {
+            throw new IOException("Publisher is closed");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (closeLock) {
+            if (closed)
+                return;
+            closed = true;
+            if (fc.isOpen()) {
+                ring.closeWriter();
+            }
+            fc.close();
+            /* Subscribers opening it by name cannot join anymore */
+            if (file != null) {
+                SMUtils.deleteExchangeFile(file);
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        synchronized (closeLock) {
+            return closed;
+        }
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.donarproject.smocket.SMStream.CACHE_LINE;
+import static org.donarproject.smocket.SMStream.HEADER_SIZE;
+
+/**
+ * Single producer, single consumer ring laid out over an exchange file.
+ * <p>
+ * The file starts with a control block holding the geometry of the ring then the writer and reader positions,
+ * each one on its own pair of cache lines, followed by the data region. Positions are byte counts since the creation of the ring.
+ * The writer publishes its position with an ordered store once a record is written, the reader publishes
+ * the position it has consumed up to the same way, so neither side needs a lock or a system call.
+ * Each side flags itself as closed the same way, and the writer publishes its process and a heartbeat so that the
+ * reader detects it died without closing, see {@link SMHeartbeat}.
+ * <p>
+ * A multi producer ring is written by concurrent writers, which claim their records with a compare and swap of a
+ * claim position and commit each of them with an ordered store of its header. The writer position is then only
+ * published on close : the reader waits for the header of the next record to be set, and clears the records it
+ * consumes so that a header is only ever set by the writer of the current lap.
+ * <p>
+ * The data region is made of one or more segments, each one mapped on its own so that a ring can exceed the 2 GBytes
+ * a single mapping is limited to. Records never straddle two segments, the end of a segment being padded as the end
+ * of the ring is.
+ * <p>
+ * The mappings of a ring are released as soon as it is closed rather than when garbage collected. Threads accessing
+ * them acquire the ring first, the last one releasing it once unmapped doing the actual unmapping. A pooled ring is
+ * kept mapped instead, for its pool to reset it and hand it to a new session.
+ * <p>
+ * A record is a {@link SMStream#HEADER_SIZE} length header followed by the payload, padded to a multiple
+ * of the alignment of the ring, {@link SMStream#CACHE_LINE} by default. With {@link RecordFraming#COMPACT} framing,
+ * records are only padded to {@link SMSocketOptions#MIN_ALIGNMENT} bytes, the ones spanning at least the alignment
+ * of the ring being preceded by padding so that they start on it. A negative length marks padding of that many
+ * bytes to skip.
+ */
+final class SMRing {
+    private final static Logger LOGGER = Logger.getLogger(SMRing.class.getName());
+
+    static final int CONTROL_SIZE = 1 << 12; //4 KBytes, keeps the data region page aligned
+    static final int PAGE_SIZE = 1 << 12; //4 KBytes
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int SEGMENT_SIZE_OFFSET = 4;
+    private static final int ALIGNMENT_OFFSET = 8;
+    private static final int FRAMING_OFFSET = 12;
+    private static final int SEGMENTS_OFFSET = 16;
+    private static final int FLAGS_OFFSET = 20;
+    private static final int TAIL_OFFSET = 2 * CACHE_LINE;
+    private static final int HEAD_OFFSET = 4 * CACHE_LINE;
+    private static final int WRITER_STATE_OFFSET = 6 * CACHE_LINE;
+    private static final int READER_STATE_OFFSET = 8 * CACHE_LINE;
+    private static final int CLAIM_OFFSET = 10 * CACHE_LINE;
+    private static final int WRITER_PID_OFFSET = 12 * CACHE_LINE;
+    private static final int WRITER_PID_NAMESPACE_OFFSET = WRITER_PID_OFFSET + 8;
+    private static final int HEARTBEAT_OFFSET = 14 * CACHE_LINE;
+
+    private static final int MAGIC = 0x534d5247; //SMRG
+    private static final int CLOSED = 1;
+    private static final int MULTI_PRODUCER = 1;
+    /* Set in the number of users once unmapped */
+    private static final int UNMAPPED = Integer.MIN_VALUE;
+
+    /* Used while connecting */
+    static final WaitStrategy DEFAULT_WAIT_STRATEGY = new BackoffWaitStrategy();
+
+    private final MappedMemory control;
+    private final MappedMemory[] segments;
+    private final long capacity;
+    private final long mask;
+    private final int segmentSize;
+    private final int segmentShift;
+    private final int alignment;
+    private final RecordFraming framing;
+    /* Alignment of the end of the records */
+    private final int granularity;
+    private final int pageSize;
+    private final boolean multiProducer;
+    /* Number of threads accessing the mappings */
+    private final AtomicInteger users = new AtomicInteger();
+    private final AtomicBoolean mapped = new AtomicBoolean(true);
+    /* Kept mapped once closed, see SMSessionPool */
+    private volatile boolean pooled = false;
+
+    private SMRing(FileChannel fc, FileChannel.MapMode mode, long offset, MappedMemory control, int segmentSize, int segmentCount, int alignment, RecordFraming framing, boolean multiProducer, int pageSize) throws IOException {
+        this.control = control;
+        this.segmentSize = segmentSize;
+        this.segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+        this.capacity = (long) segmentSize * segmentCount;
+        this.mask = capacity - 1;
+        this.alignment = alignment;
+        this.framing = framing;
+        this.granularity = framing == RecordFraming.COMPACT ? SMSocketOptions.MIN_ALIGNMENT : alignment;
+        this.multiProducer = multiProducer;
+        this.pageSize = pageSize;
+        this.segments = new MappedMemory[segmentCount];
+        final int stride = mappingSize(segmentSize, pageSize);
+        for (int i = 0; i < segmentCount; ++i) {
+            segments[i] = new MappedMemory(fc, mode, offset + control.size() + (long) i * stride, stride);
+        }
+    }
+
+    /**
+     * @return the given size rounded up to the page size of the file, which huge page file systems require
+     */
+    private static int mappingSize(long size, int pageSize) throws IOException {
+        final long result = (size + pageSize - 1) & -pageSize;
+        if (result > Integer.MAX_VALUE) {
+            throw new IOException("Ring of " + size + " bytes is too large for pages of " + pageSize + " bytes");
+        }
+        return (int) result;
+    }
+
+    /**
+     * Maps a new ring over the given file and publishes its geometry.
+     *
+     * @param segmentSize  size of each segment of the data region
+     * @param segmentCount  number of segments, a power of 2
+     * @param multiProducer true if written by concurrent writers
+     * @param pageSize         page size of the file system holding the file, see {@link SMUtils#pageSize(java.nio.file.Path)}
+     */
+    static SMRing create(FileChannel fc, int segmentSize, int segmentCount, int alignment, RecordFraming framing, boolean multiProducer, int pageSize) throws IOException {
+        return create(fc, 0, segmentSize, segmentCount, alignment, framing, multiProducer, pageSize);
+    }
+
+    /**
+     * Maps a new ring at the given offset of the file, a multiple of the page size, and publishes its geometry.
+     */
+    static SMRing create(FileChannel fc, long offset, int segmentSize, int segmentCount, int alignment, RecordFraming framing, boolean multiProducer, int pageSize) throws IOException {
+        if (Integer.bitCount(alignment) != 1 || alignment < SMSocketOptions.MIN_ALIGNMENT) {
+            throw new IllegalArgumentException("Ring alignment must be a power of 2 greater than " + SMSocketOptions.MIN_ALIGNMENT + " : " + alignment);
+        }
+        if (Integer.bitCount(segmentSize) != 1 || segmentSize < alignment) {
+            throw new IllegalArgumentException("Ring segment size must be a power of 2 greater than " + alignment + " : " + segmentSize);
+        }
+        if (Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("Ring segment count must be a power of 2 : " + segmentCount);
+        }
+        final MappedMemory control = new MappedMemory(fc, offset, mappingSize(CONTROL_SIZE, pageSize));
+        SMRing ring = new SMRing(fc, FileChannel.MapMode.READ_WRITE, offset, control, segmentSize, segmentCount, alignment, framing, multiProducer, pageSize);
+        control.putInt(SEGMENT_SIZE_OFFSET, segmentSize);
+        control.putInt(SEGMENTS_OFFSET, segmentCount);
+        control.putInt(ALIGNMENT_OFFSET, alignment);
+        control.putInt(FRAMING_OFFSET, framing.ordinal());
+        control.putInt(FLAGS_OFFSET, multiProducer ? MULTI_PRODUCER : 0);
+        control.putIntOrdered(MAGIC_OFFSET, MAGIC);
+        return ring;
+    }
+
+    /**
+     * Maps the ring created over the given file, waiting for its geometry to be published.
+     *
+     * @param pageSize page size of the file system holding the file, see {@link SMUtils#pageSize(java.nio.file.Path)}
+     */
+    static SMRing open(FileChannel fc, int pageSize, long timeout, TimeUnit unit) throws IOException, TimeoutException {
+        return open(fc, FileChannel.MapMode.READ_WRITE, pageSize, timeout, unit);
+    }
+
+    /**
+     * Maps the ring created over the given file with the given mode, read only for readers that publish their
+     * position elsewhere.
+     */
+    static SMRing open(FileChannel fc, FileChannel.MapMode mode, int pageSize, long timeout, TimeUnit unit) throws IOException, TimeoutException {
+        return open(fc, 0, mode, pageSize, timeout, unit);
+    }
+
+    /**
+     * Idles while connecting, until another process publishes what is waited for.
+     *
+     * @throws InterruptedIOException if the thread has been interrupted, the connection being given up
+     */
+    static void idle(int attempt) throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Interrupted while connecting");
+        }
+        DEFAULT_WAIT_STRATEGY.idle(attempt);
+    }
+
+    /**
+     * Maps the ring created at the given offset of the file.
+     */
+    static SMRing open(FileChannel fc, long offset, FileChannel.MapMode mode, int pageSize, long timeout, TimeUnit unit) throws IOException, TimeoutException {
+        final MappedMemory control = new MappedMemory(fc, mode, offset, mappingSize(CONTROL_SIZE, pageSize));
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int attempt = 0;
+        while (control.getIntVolatile(MAGIC_OFFSET) != MAGIC) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new TimeoutException("Timeout exceeded while waiting for the ring to be created");
+            }
+            idle(attempt++);
+        }
+        final int segmentSize = control.getInt(SEGMENT_SIZE_OFFSET);
+        final int segmentCount = control.getInt(SEGMENTS_OFFSET);
+        final int alignment = control.getInt(ALIGNMENT_OFFSET);
+        final int framing = control.getInt(FRAMING_OFFSET);
+        final int flags = control.getInt(FLAGS_OFFSET);
+        if (Integer.bitCount(segmentSize) != 1 || Integer.bitCount(segmentCount) != 1 || Integer.bitCount(alignment) != 1
+                || segmentSize < alignment || alignment < SMSocketOptions.MIN_ALIGNMENT || framing < 0 || framing >= RecordFraming.values().length) {
+            throw new IOException("Corrupted ring geometry : " + segmentSize + "x" + segmentCount + "/" + alignment + "/" + framing);
+        }
+        return new SMRing(fc, mode, offset, control, segmentSize, segmentCount, alignment, RecordFraming.values()[framing], (flags & MULTI_PRODUCER) != 0, pageSize);
+    }
+
+    /**
+     * @return the segment holding the given position
+     */
+    MappedMemory memory(long position) {
+        return segments[(int) ((position & mask) >>> segmentShift)];
+    }
+
+    /**
+     * @return the index of the segment holding the given position
+     */
+    int segment(long position) {
+        return (int) ((position & mask) >>> segmentShift);
+    }
+
+    int segmentCount() {
+        return segments.length;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes of the file mapped by the ring from its offset, past which it can hold other data
+     */
+    long mappedSize() {
+        return control.size() + (long) segments.length * segments[0].size();
+    }
+
+    int segmentSize() {
+        return segmentSize;
+    }
+
+    int alignment() {
+        return alignment;
+    }
+
+    RecordFraming framing() {
+        return framing;
+    }
+
+    boolean isMultiProducer() {
+        return multiProducer;
+    }
+
+    /**
+     * @return the offset of the given position in its segment
+     */
+    int offset(long position) {
+        return (int) position & (segmentSize - 1);
+    }
+
+    /**
+     * @return the number of contiguous bytes between the given position and the end of its segment
+     */
+    int remaining(long position) {
+        return segmentSize - offset(position);
+    }
+
+    /**
+     * Faults the pages of the data region in according to the given mode.
+     *
+     * @param writer true if called by the writer of the ring, which is the only one allowed to write its data
+     */
+    void prefault(RingPrefault prefault, boolean writer) {
+        if (prefault == RingPrefault.NONE) {
+            return;
+        }
+        final long time = System.nanoTime();
+        RingPrefault applied = prefault;
+        if (applied == RingPrefault.LOCK) {
+            try {
+                for (MappedMemory segment : segments) {
+                    segment.lock();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot lock the pages of the ring, touching them instead", e);
+                applied = RingPrefault.TOUCH;
+            }
+        }
+        if (applied == RingPrefault.TOUCH && writer && tail() == head()) {
+            /* Nothing to read in an empty ring, write faults map the pages writable at once */
+            for (MappedMemory segment : segments) {
+                segment.touch(0, pageSize);
+            }
+        } else if (applied != RingPrefault.LOCK) {
+            for (MappedMemory segment : segments) {
+                segment.load();
+            }
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Prefaulted " + capacity + "B ring (" + applied + ") in " + (System.nanoTime() - time) / 1000000. + " ms");
+        }
+    }
+
+    long tail() {
+        return control.getLongVolatile(TAIL_OFFSET);
+    }
+
+    void publishTail(long position) {
+        control.putLongOrdered(TAIL_OFFSET, position);
+    }
+
+    /**
+     * @return the position up to which concurrent writers have claimed the ring
+     */
+    long claimTail() {
+        return control.getLongVolatile(CLAIM_OFFSET);
+    }
+
+    boolean casClaimTail(long expected, long position) {
+        return control.compareAndSwapLong(CLAIM_OFFSET, expected, position);
+    }
+
+    long head() {
+        return control.getLongVolatile(HEAD_OFFSET);
+    }
+
+    void publishHead(long position) {
+        control.putLongOrdered(HEAD_OFFSET, position);
+    }
+
+    boolean isWriterClosed() {
+        return control.getIntVolatile(WRITER_STATE_OFFSET) == CLOSED;
+    }
+
+    void closeWriter() {
+        control.putIntOrdered(WRITER_STATE_OFFSET, CLOSED);
+    }
+
+    boolean isReaderClosed() {
+        return control.getIntVolatile(READER_STATE_OFFSET) == CLOSED;
+    }
+
+    void closeReader() {
+        control.putIntOrdered(READER_STATE_OFFSET, CLOSED);
+    }
+
+    /**
+     * Publishes the process writing the ring, see {@link SMHeartbeat}.
+     */
+    void publishWriter(int pid, long pidNamespace) {
+        control.putLongOrdered(WRITER_PID_NAMESPACE_OFFSET, pidNamespace);
+        control.putIntOrdered(WRITER_PID_OFFSET, pid);
+    }
+
+    int writerPid() {
+        return control.getIntVolatile(WRITER_PID_OFFSET);
+    }
+
+    long writerPidNamespace() {
+        return control.getLongVolatile(WRITER_PID_NAMESPACE_OFFSET);
+    }
+
+    /* Only called by the heartbeat thread of the writer process */
+    void beat() {
+        control.putLongOrdered(HEARTBEAT_OFFSET, control.getLongVolatile(HEARTBEAT_OFFSET) + 1);
+    }
+
+    long heartbeat() {
+        return control.getLongVolatile(HEARTBEAT_OFFSET);
+    }
+
+    /**
+     * Keeps the ring mapped until {@link #release()} is called.
+     *
+     * @throws IOException if the ring has been unmapped
+     */
+    void acquire() throws IOException {
+        for (; ; ) {
+            final int _users = users.get();
+            if (_users < 0) {
+                throw new IOException("Stream closed");
+            }
+            if (users.compareAndSet(_users, _users + 1)) {
+                return;
+            }
+        }
+    }
+
+    void release() {
+        if (users.decrementAndGet() == UNMAPPED) {
+            _unmap();
+        }
+    }
+
+    /**
+     * Unmaps the ring once no thread accesses it anymore, right away if none does. Threads waiting on the ring are
+     * expected to give up once {@link #isUnmapped()}.
+     */
+    void unmap() {
+        for (; ; ) {
+            final int _users = users.get();
+            if (_users < 0) {
+                return;
+            }
+            if (users.compareAndSet(_users, _users | UNMAPPED)) {
+                if (_users == 0) {
+                    _unmap();
+                }
+                return;
+            }
+        }
+    }
+
+    boolean isUnmapped() {
+        return users.get() < 0;
+    }
+
+    /**
+     * @return true if the ring has been unmapped and no thread accesses it anymore
+     */
+    boolean isReleased() {
+        return users.get() == UNMAPPED;
+    }
+
+    private void _unmap() {
+        if (pooled || !mapped.compareAndSet(true, false)) {
+            return;
+        }
+        for (MappedMemory segment : segments) {
+            segment.unmap();
+        }
+        control.unmap();
+    }
+
+    /**
+     * Keeps the ring mapped once unmapped by its streams, until {@link #dispose()} is called.
+     */
+    void pool() {
+        pooled = true;
+    }
+
+    /**
+     * Empties a released pooled ring, so that it can be used again by the streams of a new session.
+     */
+    void reset() {
+        assert pooled && isReleased();
+        if (multiProducer) {
+            /* Writers commit their records over cleared headers */
+            for (MappedMemory segment : segments) {
+                segment.clear(0, segment.size());
+            }
+        }
+        control.putLongOrdered(TAIL_OFFSET, 0);
+        control.putLongOrdered(HEAD_OFFSET, 0);
+        control.putLongOrdered(CLAIM_OFFSET, 0);
+        control.putIntOrdered(WRITER_STATE_OFFSET, 0);
+        control.putIntOrdered(READER_STATE_OFFSET, 0);
+        control.putIntOrdered(WRITER_PID_OFFSET, 0);
+        users.set(0);
+    }
+
+    /**
+     * Unmaps a pooled ring, right away if released, once its streams are closed otherwise.
+     */
+    void dispose() {
+        pooled = false;
+        unmap();
+        if (isReleased()) {
+            _unmap();
+        }
+    }
+
+    /**
+     * @return the number of bytes taken in the ring by a record of the given payload length
+     */
+    int recordLength(int length) {
+        return (HEADER_SIZE + length + granularity - 1) & -granularity;
+    }
+
+    /**
+     * @return the number of bytes to skip before writing a record of the given payload length at the given position
+     */
+    int padding(long position, int length) {
+        if (granularity == alignment || recordLength(length) < alignment) {
+            return 0;
+        }
+        return (int) (-position & (alignment - 1));
+    }
+
+    /**
+     * @return the largest number of bytes skipped before a record
+     */
+    int maxPadding() {
+        return alignment - granularity;
+    }
+}
@@ -20,9 +20,9 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -31,111 +31,152 @@ import java.util.regex.Pattern;
 public class SMServerSocket implements Closeable {
     private final static Logger logger = Logger.getLogger(SMServerSocket.class.getName());
     private final Object closeLock = new Object();
-    private final WatchService watchService;
 
     final String port;
     final Path host;
 
     private boolean closed = false;
 
+    /* File of the port, holding the listen queue */
+    private final Path file;
     private final FileChannel fc;
-    private FileLock fl;
+    /* Mapped over the file of the port, dequeued by the accepting thread */
+    private final SMListenQueue listenQueue;
 
     private final Pattern pattern;
 
+    private final SMSocketOptions options;
+    /* Directory the rings of the accepted sockets are created in */
+    private final Path ringDirectory;
+    /* null if session pooling is disabled */
+    private final SMSessionPool pool;
+    /* Started by the first call to accept */
+    private SMAcceptor acceptor;
+
     public SMServerSocket(String host, String port) throws IOException {
+        this(host, port, new SMSocketOptions());
+    }
+
+    /**
+     * Binds a server whose accepted sockets use the given options, negotiated with the ones of each client.
+     */
+    public SMServerSocket(String host, String port, SMSocketOptions options) throws IOException {
         logger.fine("Starting SM server on : " + host + ":" + port);
-        watchService = FileSystems.getDefault().newWatchService();
         this.port = port;
+        this.options = options.clone();
         this.host = Paths.get(host);
-        Path f = this.host.resolve(port);
+        this.ringDirectory = SMUtils.ringDirectory(options.getRingDirectory() != null ? options.getRingDirectory() : this.host,
+                options.getRingDirectory() == null, 2L * SMRing.CONTROL_SIZE + ((long) options.getInputRingSize() + options.getOutputRingSize()) * options.getRingSegments());
+        this.file = this.host.resolve(port);
         this.pattern = Pattern.compile(port + "_[a-z0-9\\-]*");
-        if (Files.exists(f, LinkOption.NOFOLLOW_LINKS)) {
+        if (Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
             throw new IOException("Socket " + port + " is already registered in " + host);
         } else {
-            fc = SMUtils.createDeleteOnExitFile(f);
-            fl = fc.lock();
-            this.host.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            /* Before clients can connect */
+            pool = options.getSessionPoolSize() > 0 ? new SMSessionPool(ringDirectory, port, this.options, SMUtils.pageSize(ringDirectory)) : null;
+            fc = SMUtils.createExchangeFile(file);
+            listenQueue = SMListenQueue.create(fc, SMListenQueue.CAPACITY, ringDirectory);
         }
     }
 
+    /**
+     * Waits for connections, handshaked with their clients in the background.
+     *
+     * @return the sockets accepted since the previous call, at least one, null if closed or interrupted
+     */
     public Iterable<SMSocket> accept() throws IOException, InterruptedException {
-        if (isClosed())
-            throw new IOException("Server socket is closed");
-        if (fl != null) {
-            fl.release();
-            fl = null;
+        final SMAcceptor _acceptor;
+        synchronized (closeLock) {
+            if (closed)
+                throw new IOException("Server socket is closed");
+            if (acceptor == null) {
+                acceptor = new SMAcceptor(port, this::poll, pattern, name -> new SMSocket(host, port, name, ringDirectory, options, pool),
+                        options.getAcceptBacklog(), options.getHandshakeThreads());
+                /* Clients wait for it before requesting a session */
+                listenQueue.startAccepting();
+            }
+            _acceptor = acceptor;
         }
-        Set<SMSocket> result = new HashSet<>();
         for (; ; ) {
-            WatchKey key;
+            final List<SMSocket> result;
             try {
-                key = watchService.take();
-            } catch (InterruptedException x) {
+                result = _acceptor.accept(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
                 return null;
             }
-            List<WatchEvent<?>> events = key.pollEvents();
-            for (WatchEvent<?> event : events) {
-                WatchEvent.Kind<?> kind = event.kind();
-
-                if (kind == StandardWatchEventKinds.OVERFLOW) {
-                    continue;
-                }
-                if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-                    WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                    Path filename = ev.context();
-
-                    /* Ensure file name is relative */
-                    if (filename.isAbsolute()) {
-                        filename = filename.getFileName();
-                    }
-                    String name = filename.toString();
-
-                    if (pattern.matcher(name).matches()) {
-                        Path out = host.resolve(name + "_out");
-                        Path in = host.resolve(name + "_in");
-                        SMSocket socket = null;
-                        try {
-                            logger.fine("Accepted : " + name);
-                            socket = new SMSocket(host, port, name, out, in);
-                        } catch (TimeoutException t) {
-                            key.reset();
-                        }
-                        if (socket != null) {
-                            result.add(socket);
-                        }
-                    }
-                }
-            }
-
             if (result.size() > 0) {
-                key.reset();
                 return result;
             }
-
-            boolean valid = key.reset();
-            if (!valid) {
-                break;
+            if (Thread.interrupted() || isClosed()) {
+                return null;
             }
+        }
+    }
 
+    /**
+     * @return the number of connections being handshaked
+     */
+    public int getPendingHandshakes() {
+        final SMAcceptor _acceptor = acceptor();
+        return _acceptor != null ? _acceptor.pending() : 0;
+    }
+
+    /**
+     * @return the number of connections handshaked, whether accepted already or still in the backlog
+     */
+    public long getCompletedHandshakes() {
+        final SMAcceptor _acceptor = acceptor();
+        return _acceptor != null ? _acceptor.completed() : 0;
+    }
+
+    /**
+     * @return the number of clients that did not complete their handshake in time
+     */
+    public long getTimedOutHandshakes() {
+        final SMAcceptor _acceptor = acceptor();
+        return _acceptor != null ? _acceptor.timedOut() : 0;
+    }
+
+    /**
+     * @return the number of handshakes that failed otherwise
+     */
+    public long getFailedHandshakes() {
+        final SMAcceptor _acceptor = acceptor();
+        return _acceptor != null ? _acceptor.failed() : 0;
+    }
+
+    private SMAcceptor acceptor() {
+        synchronized (closeLock) {
+            return acceptor;
+        }
+    }
+
+    /**
+     * @return the name of the file of the next session requested, null if none or closed
+     */
+    private String poll() {
+        synchronized (closeLock) {
+            return closed ? null : listenQueue.poll();
         }
-        return null;
     }
 
     public void close() {
         synchronized (closeLock) {
             if (!closed) {
                 closed = true;
-                try {
-                    fc.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                if (acceptor != null) {
+                    acceptor.close();
                 }
+                if (pool != null) {
+                    pool.close();
+                }
+                listenQueue.unmap();
                 try {
-                    watchService.close();
+                    fc.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
+                SMUtils.deleteExchangeFile(file);
             }
         }
     }
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sessions of a {@link SMServerSocket} whose rings are created, mapped and prefaulted ahead of the connections.
+ * <p>
+ * A session is leased to a connection negotiating the ring geometry of the server, whose client opens the rings
+ * right away instead of waiting for their creation. Once the server side is closed and the client has closed its
+ * streams, or died, the rings are reset rather than deleted and the session goes back to the pool. The pool is
+ * refilled up to its size in the background.
+ */
+final class SMSessionPool implements Closeable {
+    private final static Logger LOGGER = Logger.getLogger(SMSessionPool.class.getName());
+    /* Refills the pools and recycles their sessions */
+    private final static ScheduledExecutorService maintenanceScheduler = Executors.newScheduledThreadPool(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SMSessionPool maintenance");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final static long MAINTENANCE_DELAY_MILLIS = 100;
+
+    private final Path directory;
+    private final String port;
+    private final SMSocketOptions options;
+    private final RingPrefault prefault;
+    private final int pageSize;
+    private final int size;
+    private final Queue<Session> free = new ConcurrentLinkedQueue<>();
+    /* Closed on the server side, waiting for the client to be done with them */
+    private final Queue<Session> released = new ConcurrentLinkedQueue<>();
+    private final ScheduledFuture<?> maintenanceTask;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates the sessions of the pool, with the ring geometry of the given options, in the given directory.
+     */
+    SMSessionPool(Path directory, String port, SMSocketOptions options, int pageSize) throws IOException {
+        this.directory = directory;
+        this.port = port;
+        this.options = options;
+        this.prefault = options.getRingPrefault() != RingPrefault.NONE ? options.getRingPrefault() : RingPrefault.TOUCH;
+        this.pageSize = pageSize;
+        this.size = options.getSessionPoolSize();
+        final long time = System.nanoTime();
+        try {
+            for (int i = 0; i < size; ++i) {
+                free.add(new Session());
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Pooled " + size + " sessions in " + directory + " in " + (System.nanoTime() - time) / 1000000. + " ms");
+        }
+        maintenanceTask = maintenanceScheduler.scheduleWithFixedDelay(this::maintain, MAINTENANCE_DELAY_MILLIS, MAINTENANCE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param options negotiated options of the server side of the session
+     * @return a pooled session, or null if the pool is empty or its rings are not laid out as the given options do
+     */
+    Session lease(SMSocketOptions options) {
+        if (closed || options.getSessionLayout() != SessionLayout.SEPARATE_FILES || !this.options.hasSameRings(options)) {
+            return null;
+        }
+        final Session session = free.poll();
+        if (session != null && free.size() < size) {
+            maintenanceScheduler.execute(this::maintain);
+        }
+        return session;
+    }
+
+    /**
+     * Recycles the released sessions the clients are done with then refills the pool.
+     */
+    private synchronized void maintain() {
+        for (Iterator<Session> it = released.iterator(); it.hasNext(); ) {
+            final Session session = it.next();
+            try {
+                if (!session.isRecyclable()) {
+                    continue;
+                }
+                it.remove();
+                if (closed || free.size() >= size) {
+                    session.close();
+                } else {
+                    session.reset();
+                    free.add(session);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot recycle the session " + session.name, e);
+                it.remove();
+                session.close();
+            }
+        }
+        try {
+            while (!closed && free.size() < size) {
+                free.add(new Session());
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot refill the session pool of " + directory, e);
+        }
+    }
+
+    /**
+     * Deletes the rings of the sessions not leased, once a refill in progress is over so that none is left behind.
+     */
+    @Override
+    public void close() {
+        /* Before waiting, for a refill in progress to stop early */
+        closed = true;
+        if (maintenanceTask != null) {
+            maintenanceTask.cancel(false);
+        }
+        synchronized (this) {
+            Session session;
+            while ((session = free.poll()) != null) {
+                session.close();
+            }
+            while ((session = released.poll()) != null) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Pair of rings leased to a connection.
+     */
+    final class Session {
+        private final String name;
+        /* Ring files, deleted once the session is closed */
+        private final Path in;
+        private final Path out;
+        /* Keep the ring files open while the streams of the session are not */
+        private final FileChannel inOwner;
+        private final FileChannel outOwner;
+        private final SMRing inRing;
+        private final SMRing outRing;
+        /* Closed by the streams of the session, opened again on reset */
+        private FileChannel inFC;
+        private FileChannel outFC;
+        /* Locked by the client until closed, null until the session is released */
+        private FileChannel closeGuard;
+
+        private Session() throws IOException {
+            name = port + "_pool_" + UUID.randomUUID();
+            /* Named as the ones of the other sessions, from the client side */
+            in = directory.resolve(name + "_out");
+            out = directory.resolve(name + "_in");
+            FileChannel _inOwner = null;
+            FileChannel _outOwner = null;
+            SMRing _inRing = null;
+            SMRing _outRing = null;
+            try {
+                _inOwner = SMUtils.createExchangeFile(in);
+                _inRing = SMRing.create(_inOwner, options.getInputRingSize(), options.getRingSegments(), options.getAlignment(), options.getRecordFraming(), options.isRemoteMultiProducer(), pageSize);
+                _inRing.pool();
+                _outOwner = SMUtils.createExchangeFile(out);
+                _outRing = SMRing.create(_outOwner, options.getOutputRingSize(), options.getRingSegments(), options.getAlignment(), options.getRecordFraming(), options.isMultiProducer(), pageSize);
+                _outRing.pool();
+                /* Both rings are empty, so that each one can be touched as its writer would */
+                _inRing.prefault(prefault, true);
+                _outRing.prefault(prefault, true);
+                inFC = SMUtils.openSharedFile(in);
+                outFC = SMUtils.openSharedFile(out);
+            } catch (IOException | RuntimeException e) {
+                if (_inRing != null) {
+                    _inRing.dispose();
+                }
+                if (_outRing != null) {
+                    _outRing.dispose();
+                }
+                for (FileChannel fc : new FileChannel[]{inFC, outFC, _inOwner, _outOwner}) {
+                    if (fc != null) {
+                        fc.close();
+                    }
+                }
+                SMUtils.deleteExchangeFile(in);
+                SMUtils.deleteExchangeFile(out);
+                throw e;
+            }
+            inOwner = _inOwner;
+            outOwner = _outOwner;
+            inRing = _inRing;
+            outRing = _outRing;
+        }
+
+        /**
+         * @return the path of the ring files without their suffixes, as sent to the client
+         */
+        Path rings() {
+            return directory.resolve(name);
+        }
+
+        FileChannel inChannel() {
+            return inFC;
+        }
+
+        FileChannel outChannel() {
+            return outFC;
+        }
+
+        SMRing inRing() {
+            return inRing;
+        }
+
+        SMRing outRing() {
+            return outRing;
+        }
+
+        /**
+         * Hands the session back to the pool once its streams are closed.
+         *
+         * @param closeGuard channel of the lock held by the client until closed, null if it never acknowledged the
+         *                   session
+         */
+        void release(FileChannel closeGuard) throws IOException {
+            /* In case the socket failed before opening its streams */
+            inRing.unmap();
+            outRing.unmap();
+            inFC.close();
+            outFC.close();
+            this.closeGuard = closeGuard;
+            released.add(this);
+            if (closed && released.remove(this)) {
+                close();
+            }
+        }
+
+        /**
+         * @return true if both end points are done with the rings
+         */
+        private boolean isRecyclable() throws IOException {
+            if (!inRing.isReleased() || !outRing.isReleased()) {
+                return false;
+            }
+            /* The client closes both of its streams before releasing its lock */
+            return (inRing.isWriterClosed() && outRing.isReaderClosed()) || isClientDead();
+        }
+
+        private boolean isClientDead() throws IOException {
+            if (closeGuard == null) {
+                return false;
+            }
+            try (FileLock lock = closeGuard.tryLock(0, 1, true)) {
+                return lock != null;
+            } catch (OverlappingFileLockException e) {
+                /* The client lives in this JVM and still holds its lock */
+                return false;
+            }
+        }
+
+        private void reset() throws IOException {
+            if (closeGuard != null) {
+                closeGuard.close();
+                closeGuard = null;
+            }
+            inRing.reset();
+            outRing.reset();
+            inFC = SMUtils.openSharedFile(in);
+            outFC = SMUtils.openSharedFile(out);
+        }
+
+        private void close() {
+            inRing.dispose();
+            outRing.dispose();
+            for (FileChannel fc : new FileChannel[]{closeGuard, inFC, outFC, inOwner, outOwner}) {
+                try {
+                    if (fc != null) {
+                        fc.close();
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Cannot close the session " + name, e);
+                }
+            }
+            SMUtils.deleteExchangeFile(in);
+            SMUtils.deleteExchangeFile(out);
+        }
+    }
+}
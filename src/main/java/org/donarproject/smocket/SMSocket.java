@@ -27,6 +27,7 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,8 +53,22 @@ public class SMSocket implements Closeable {
 
 
     private final Set<FileChannel> fcs = new HashSet<>();
+    /* Files created by this end point, deleted once the handshake is done or failed */
+    private final Set<Path> files = new HashSet<>();
+
+    /* Pooled session of the server side, null if the rings have been created for this socket */
+    private final SMSessionPool.Session session;
 
     public SMSocket(final String hostname, final String port) throws IOException {
+        this(hostname, port, new SMSocketOptions());
+    }
+
+    /**
+     * Connects with the given options, the ring geometry being negotiated with the server.
+     */
+    public SMSocket(final String hostname, final String port, final SMSocketOptions socketOptions) throws IOException {
+        final long connectTime = System.nanoTime();
+        session = null;
         Path serverPath = Paths.get(hostname, port);
         if (!Files.exists(serverPath)) {
             throw new IOException("Cannot connect to " + hostname + ":" + port);
@@ -64,97 +79,211 @@ public class SMSocket implements Closeable {
         Set<StandardOpenOption> options = new HashSet<>();
         options.add(StandardOpenOption.WRITE);
         options.add(StandardOpenOption.READ);
-        /* Contention point to ensure correct JVM-local concurrent access to a non shared resource. It ensures the server side is ready to receive new connections */
-        synchronized (SMSocket.class) {
-            try (FileChannel fc = serverPath.getFileSystem().provider().newFileChannel(serverPath, options)) {
-                fc.lock();
-            }
-        }
-        Path file = host.resolve(suffix);
-        fcs.add(SMUtils.createDeleteOnExitFile(file));
-        ConcurrentSMUtils utils = ConcurrentSMUtils.getInstance(host, port);
         try {
-            Path out = utils.waitForFileCreation(host, suffix + "_out", 5, TimeUnit.SECONDS);
-
-            outputStream = new SMOutputStream(out);
-
-            Path client_lock = host.resolve(suffix + "_client.lock");
-            FileChannel lockChannel = SMUtils.createDeleteOnExitFile(client_lock);
-            remoteCloseLocker = lockChannel.lock(0, 1, false);
-            fcs.add(lockChannel);
-
-            Path rack = host.resolve(suffix + "_client_ack");
-            FileChannel rackChannel = SMUtils.createDeleteOnExitFile(rack);
-            fcs.add(rackChannel);
-
-        Path in = utils.waitForFileCreation(host, suffix + "_in", 5, TimeUnit.SECONDS);
-        closeLocker = in.getFileSystem().provider().newFileChannel(host.resolve(suffix + "_server.lock"), new HashSet<OpenOption>() {{
-            add(StandardOpenOption.READ);
-            add(StandardOpenOption.WRITE);
-        }});
-        inputStream = new SMInputStream(in, closeLocker);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new IOException("Cannot connect to " + hostname + ":" + port, e);
+            FileChannel sessionChannel;
+            Path sessionDirectory;
+            int sessionPageSize;
+            try (FileChannel listenChannel = serverPath.getFileSystem().provider().newFileChannel(serverPath, options)) {
+                SMListenQueue listenQueue = SMListenQueue.open(listenChannel, 5, TimeUnit.SECONDS);
+                try {
+                    /* Lock free, so that concurrent connections only contend on the tail of the queue */
+                    listenQueue.awaitAccepting(5, TimeUnit.SECONDS);
+                    sessionDirectory = listenQueue.sessionDirectory();
+                    sessionPageSize = SMUtils.pageSize(sessionDirectory);
+                    final Path sessionPath = sessionDirectory.resolve(suffix);
+                    sessionChannel = SMUtils.createExchangeFile(sessionPath);
+                    files.add(sessionPath);
+                    fcs.add(sessionChannel);
+                    SMHandshake.request(sessionChannel, sessionPageSize, socketOptions);
+                    listenQueue.offer(suffix, 5, TimeUnit.SECONDS);
+                } finally {
+                    listenQueue.unmap();
+                }
+            }
+            /* Both rings exist once the server has answered. The files of the session are all opened before
+            acknowledging it, the server being free to delete them from then on */
+            Path rings = SMHandshake.awaitResponse(sessionChannel, sessionPageSize, 5, TimeUnit.SECONDS);
+            if (rings == null) {
+                /* Single file session, each stream with its own channel so that closing one keeps the locks of the session */
+                final Path sessionPath = sessionDirectory.resolve(suffix);
+                final int pageSize = sessionPageSize;
+                final long offset = SMHandshake.ringsOffset(pageSize);
+                FileChannel outChannel = SMUtils.openSharedFile(sessionPath);
+                fcs.add(outChannel);
+                SMRing outRing = SMRing.open(outChannel, offset, FileChannel.MapMode.READ_WRITE, pageSize, 5, TimeUnit.SECONDS);
+                outputStream = new SMOutputStream(outChannel, outRing, socketOptions);
+
+                closeLocker = sessionChannel;
+                FileChannel inChannel = SMUtils.openSharedFile(sessionPath);
+                fcs.add(inChannel);
+                SMRing inRing = SMRing.open(inChannel, offset + outRing.mappedSize(), FileChannel.MapMode.READ_WRITE, pageSize, 5, TimeUnit.SECONDS);
+                inputStream = new SMInputStream(inChannel, inRing, closeLocker, SMHandshake.SERVER_LOCK_POSITION, socketOptions);
+
+                remoteCloseLocker = sessionChannel.lock(SMHandshake.CLIENT_LOCK_POSITION, 1, false);
+                SMHandshake.acknowledge(sessionChannel, sessionPageSize);
+            } else {
+                Path ringDirectory = rings.getParent();
+                String ringName = rings.getFileName().toString();
+                int pageSize = SMUtils.pageSize(ringDirectory);
+
+                /* Created and deleted by the server, which may reuse the rings of a pooled session */
+                FileChannel outChannel = SMUtils.openSharedFile(ringDirectory.resolve(ringName + "_out"));
+                fcs.add(outChannel);
+                outputStream = new SMOutputStream(outChannel, SMRing.open(outChannel, pageSize, 5, TimeUnit.SECONDS), socketOptions);
+
+                closeLocker = SMUtils.openSharedFile(host.resolve(suffix + "_server.lock"));
+                FileChannel inChannel = SMUtils.openSharedFile(ringDirectory.resolve(ringName + "_in"));
+                fcs.add(inChannel);
+                inputStream = new SMInputStream(inChannel, SMRing.open(inChannel, pageSize, 5, TimeUnit.SECONDS), closeLocker, socketOptions);
+
+                FileChannel lockChannel = SMUtils.openSharedFile(host.resolve(suffix + "_client.lock"));
+                fcs.add(lockChannel);
+                remoteCloseLocker = lockChannel.lock(0, 1, false);
+                SMHandshake.acknowledge(sessionChannel, sessionPageSize);
+            }
+            /* Only opened by the server before it answered */
+            deleteFiles();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Connected to " + hostname + ":" + port + " in " + (System.nanoTime() - connectTime) / 1000000. + " ms, " + (rings != null ? "rings in " + rings.getParent() : "single file session") + " (" + socketOptions.getRingPrefault() + ")");
+            }
         } catch (TimeoutException e) {
+            close();
             throw new IOException("Cannot connect to " + hostname + ":" + port, e);
+        } catch (IOException | RuntimeException e) {
+            /* Releases the files and mappings of the session */
+            close();
+            throw e;
         }
     }
 
-    SMSocket(final Path host, final String port, final String sessionId, final Path in, final Path out) throws IOException, InterruptedException, TimeoutException {
+    /**
+     * Accepts the session requested in the given session file, with rings of a pooled session if the pool has one
+     * with the negotiated geometry.
+     *
+     * @param pool pool of the server, null if disabled
+     */
+    SMSocket(final Path host, final String port, final String sessionId, final Path ringDirectory, final SMSocketOptions serverOptions, final SMSessionPool pool) throws IOException, TimeoutException {
+        SMSessionPool.Session _session = null;
         try {
-            ConcurrentSMUtils utils = ConcurrentSMUtils.getInstance(host, port);
             this.host = host;
-            FileChannel outFC = SMUtils.createExchangeFile(out);
-            fcs.add(outFC);
-            utils.waitForFileCreation(out.getParent(), out.getFileName().toString());
-
-
-            outputStream = new SMOutputStream(outFC);
-            Path serverLock = host.resolve(sessionId + "_server.lock");
-            FileChannel lockChannel = SMUtils.createDeleteOnExitFile(serverLock);
-            remoteCloseLocker = lockChannel.lock(0, 1, false);
-            fcs.add(lockChannel);
-
-            FileChannel inFC = SMUtils.createExchangeFile(in);
-            fcs.add(inFC);
-            utils.waitForFileCreation(in.getParent(), in.getFileName().toString());
-
-            Path rack = utils.waitForFileCreation(host, sessionId + "_client_ack", 50, TimeUnit.SECONDS);
-            closeLocker = rack.getFileSystem().provider().newFileChannel(host.resolve(sessionId + "_client.lock"), new HashSet<OpenOption>() {{
-                add(StandardOpenOption.READ);
-                add(StandardOpenOption.WRITE);
-            }});
-            inputStream = new SMInputStream(inFC, closeLocker);
+            final Path sessionPath = ringDirectory.resolve(sessionId);
+            final int pageSize = SMUtils.pageSize(ringDirectory);
+            FileChannel sessionFC = SMUtils.openSharedFile(sessionPath);
+            fcs.add(sessionFC);
+            SMSocketOptions options = SMHandshake.accept(sessionFC, pageSize, serverOptions, 5, TimeUnit.SECONDS);
+            if (options.getJournalDirectory() != null) {
+                /* A journal has a single writer, so each session has its own */
+                options.setJournalDirectory(options.getJournalDirectory().resolve(sessionId));
+            }
+            if (options.getSessionLayout() == SessionLayout.SINGLE_FILE) {
+                /* Before answering, so that the client finds it */
+                remoteCloseLocker = sessionFC.lock(SMHandshake.SERVER_LOCK_POSITION, 1, false);
+                final long offset = SMHandshake.ringsOffset(pageSize);
+
+                /* Written by the client first, as it maps it first */
+                FileChannel inFC = SMUtils.openSharedFile(sessionPath);
+                fcs.add(inFC);
+                SMRing inRing = SMRing.create(inFC, offset, options.getInputRingSize(), options.getRingSegments(), options.getAlignment(), options.getRecordFraming(), options.isRemoteMultiProducer(), pageSize);
+
+                FileChannel outFC = SMUtils.openSharedFile(sessionPath);
+                fcs.add(outFC);
+                outputStream = new SMOutputStream(outFC, SMRing.create(outFC, offset + inRing.mappedSize(), options.getOutputRingSize(), options.getRingSegments(), options.getAlignment(), options.getRecordFraming(), options.isMultiProducer(), pageSize), options);
+                SMHandshake.respond(sessionFC, pageSize, null);
+
+                SMHandshake.awaitAcknowledgement(sessionFC, pageSize, 50, TimeUnit.SECONDS);
+                closeLocker = sessionFC;
+                inputStream = new SMInputStream(inFC, inRing, closeLocker, SMHandshake.CLIENT_LOCK_POSITION, options);
+            } else {
+                /* Both locks, before answering, so that the client finds them */
+                Path serverLock = host.resolve(sessionId + "_server.lock");
+                FileChannel lockChannel = SMUtils.createExchangeFile(serverLock);
+                files.add(serverLock);
+                fcs.add(lockChannel);
+                remoteCloseLocker = lockChannel.lock(0, 1, false);
+                Path clientLock = host.resolve(sessionId + "_client.lock");
+                closeLocker = SMUtils.createExchangeFile(clientLock);
+                files.add(clientLock);
+                _session = pool != null ? pool.lease(options) : null;
+                final SMRing inRing;
+                final FileChannel inFC;
+                if (_session != null) {
+                    /* Prefaulted by the pool, the options of the server being left as they are */
+                    options = options.clone().setRingPrefault(RingPrefault.NONE);
+                    outputStream = new SMOutputStream(_session.outChannel(), _session.outRing(), options);
+                    inFC = _session.inChannel();
+                    inRing = _session.inRing();
+                    SMHandshake.respond(sessionFC, pageSize, _session.rings());
+                } else {
+                    /* Named from the client side */
+                    Path in = ringDirectory.resolve(sessionId + "_out");
+                    Path out = ringDirectory.resolve(sessionId + "_in");
+
+                    FileChannel outFC = SMUtils.createExchangeFile(out);
+                    files.add(out);
+                    fcs.add(outFC);
+                    outputStream = new SMOutputStream(outFC, SMRing.create(outFC, options.getOutputRingSize(), options.getRingSegments(), options.getAlignment(), options.getRecordFraming(), options.isMultiProducer(), pageSize), options);
+
+                    inFC = SMUtils.createExchangeFile(in);
+                    files.add(in);
+                    fcs.add(inFC);
+                    inRing = SMRing.create(inFC, options.getInputRingSize(), options.getRingSegments(), options.getAlignment(), options.getRecordFraming(), options.isRemoteMultiProducer(), pageSize);
+                    /* Once both rings exist, so that the client finds them without waiting for their creation */
+                    SMHandshake.respond(sessionFC, pageSize, ringDirectory.resolve(sessionId));
+                }
+
+                /* The client holds its lock from then on */
+                SMHandshake.awaitAcknowledgement(sessionFC, pageSize, 50, TimeUnit.SECONDS);
+                inputStream = new SMInputStream(inFC, inRing, closeLocker, options);
+            }
+            /* Opened by the client before it acknowledged the session */
+            deleteFiles();
         } catch (Throwable t) {
-            t.printStackTrace();
+            LOGGER.log(Level.FINE, "Cannot accept the session " + sessionId, t);
+            session = _session;
             close();
             throw t;
         }
+        session = _session;
     }
 
     public void close() throws IOException {
         synchronized (closeLock) {
             if (!isClosed()) {
-                if (remoteCloseLocker != null && remoteCloseLocker.isValid() && remoteCloseLocker.channel().isOpen())
-                    remoteCloseLocker.release();
-                if (closeLocker != null && closeLocker.isOpen())
-                    closeLocker.close();
                 closed = true;
+                /* Before releasing the lock, so that the remote end point can reuse the rings once it is released */
                 if (inputStream != null) {
                     inputStream.close();
                 }
                 if (outputStream != null) {
                     outputStream.close();
                 }
+                if (remoteCloseLocker != null && remoteCloseLocker.isValid() && remoteCloseLocker.channel().isOpen())
+                    remoteCloseLocker.release();
+                if (session != null) {
+                    /* Until the client is done with the rings */
+                    session.release(closeLocker);
+                } else if (closeLocker != null && closeLocker.isOpen())
+                    closeLocker.close();
                 for (FileChannel fc : fcs) {
                     fc.close();
                 }
                 fcs.clear();
+                deleteFiles();
             }
         }
     }
 
+    /**
+     * Deletes the files created by this end point once the other one opened them, so that none is left behind in
+     * the shared memory file system when either process dies.
+     */
+    private void deleteFiles() {
+        for (Path file : files) {
+            SMUtils.deleteExchangeFile(file);
+        }
+        files.clear();
+    }
+
     public boolean isClosed() {
         synchronized (closeLock) {
             return closed;
@@ -162,6 +291,13 @@ public class SMSocket implements Closeable {
     }
 
     public InputStream getInputStream() throws IOException {
+        return getSMInputStream();
+    }
+
+    /**
+     * @return the input stream of this socket, giving access to the records of its ring without copying them
+     */
+    public SMInputStream getSMInputStream() throws IOException {
         if (isClosed()) {
             throw new IOException("Socket is closed");
         }
@@ -169,12 +305,29 @@ public class SMSocket implements Closeable {
     }
 
     public OutputStream getOutputStream() throws IOException {
+        return getSMOutputStream();
+    }
+
+    /**
+     * @return the output stream of this socket, giving access to the records of its ring to write them in place
+     */
+    public SMOutputStream getSMOutputStream() throws IOException {
         if (isClosed()) {
             throw new IOException("Socket is closed");
         }
         return outputStream;
     }
 
+    /**
+     * @return a channel reading from and writing to the rings of this socket
+     */
+    public SMByteChannel getChannel() throws IOException {
+        if (isClosed()) {
+            throw new IOException("Socket is closed");
+        }
+        return new SMByteChannel(this, inputStream, outputStream);
+    }
+
     public static void main(String[] args) throws InterruptedException, IOException, TimeoutException {
         long totalTime = System.nanoTime();
         for (int i = 0; i < 60; ++i) {
@@ -183,19 +336,73 @@ public class SMSocket implements Closeable {
         LOGGER.log(Level.INFO, (System.nanoTime() - totalTime) / 1000000. + " ms");
     }
 
-    public static void main2(String[] args) throws InterruptedException, IOException, TimeoutException {
-        long totalTime = System.nanoTime();
-        Thread[] threads = new Thread[10];
-        for (int i = 0; i < threads.length; ++i) {
-            final int j = i;
-            Thread thread = new Thread(() -> _do(j));
-            thread.start();
-            threads[i] = thread;
-        }
-        for (Thread thread : threads) {
-            thread.join();
+    /**
+     * Connects to a server of this JVM from a doubling number of threads, each one opening and closing sessions one
+     * after the other, and reports the connection rate reached with each number of threads.
+     * <p>
+     * Usage : {@code main2 [directory [connections [max threads]]]}
+     */
+    public static void main2(String[] args) throws InterruptedException, IOException {
+        final String directory = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+        final int connections = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        final int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 2 * Runtime.getRuntime().availableProcessors();
+        final String port = "7791";
+        final SMServerSocket server = new SMServerSocket(directory, port);
+        final ExecutorService handlers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "SMSocket benchmark handler");
+            t.setDaemon(true);
+            return t;
+        });
+        final Thread acceptor = new Thread(() -> {
+            try {
+                Iterable<SMSocket> sockets;
+                while ((sockets = server.accept()) != null) {
+                    for (final SMSocket socket : sockets) {
+                        handlers.execute(() -> {
+                            /* Until the client closes */
+                            try (SMSocket _socket = socket) {
+                                _socket.getInputStream().read();
+                            } catch (IOException e) {
+                                LOGGER.log(Level.WARNING, "An exception occurred while closing SMSocket", e);
+                            }
+                        });
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                if (!server.isClosed()) {
+                    LOGGER.log(Level.WARNING, "An exception occurred while accepting SMSocket", e);
+                }
+            }
+        }, "SMSocket benchmark acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (int threadCount = 1; threadCount <= maxThreads; threadCount <<= 1) {
+            final AtomicInteger remaining = new AtomicInteger(connections);
+            final AtomicInteger failures = new AtomicInteger();
+            final Thread[] threads = new Thread[threadCount];
+            final long time = System.nanoTime();
+            for (int i = 0; i < threads.length; ++i) {
+                threads[i] = new Thread(() -> {
+                    while (remaining.getAndDecrement() > 0) {
+                        try {
+                            /* Connection only */
+                            new SMSocket(directory, port).close();
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            final double seconds = (System.nanoTime() - time) / 1000000000.;
+            LOGGER.log(Level.INFO, String.format("%3d threads : %8.0f connections/s, %d failed", threadCount, connections / seconds, failures.get()));
         }
-        LOGGER.log(Level.INFO, (System.nanoTime() - totalTime) / 1000000. + " ms");
+        server.close();
+        handlers.shutdownNow();
     }
 
     private static void _do(int id) {
@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options of a {@link SMSocket} or of the sockets accepted by a {@link SMServerSocket}.
+ * <p>
+ * Ring sizes and alignment are negotiated when connecting : the sizes requested by the client win over the ones of
+ * the server, within the server maximum ring size, and the largest of both alignments is used. Sizes that are not
+ * set fall back to the ones of the other end point, then to {@link SMStream#MAPPED_SIZE}. The record framing
+ * and number of ring segments requested by the client win over the ones of the server, within the server maximum
+ * number of segments.
+ */
+public class SMSocketOptions implements Cloneable {
+    public final static int MIN_RING_SIZE = 1 << 12; //4 KBytes
+    public final static int MAX_RING_SIZE = 1 << 30; //1 GByte
+    public final static int MIN_ALIGNMENT = 1 << 3; //8 bytes
+    public final static int MAX_RING_SEGMENTS = 1 << 10;
+    public final static int MAX_SUBSCRIBERS = 1 << 10;
+
+    /* 0 when not set */
+    private int inputRingSize;
+    private int outputRingSize;
+    private int alignment;
+    /* null when not set */
+    private RecordFraming recordFraming;
+    /* 0 when not set */
+    private int maxRingSize;
+    private int ringSegments;
+    private int maxRingSegments;
+    private RingFullPolicy ringFullPolicy = RingFullPolicy.BLOCK;
+    private WaitStrategy waitStrategy = SMRing.DEFAULT_WAIT_STRATEGY;
+    /* 0 when disabled */
+    private int writeCombiningThreshold;
+    private long writeCombiningDelayNanos;
+    /* null for the directory of the server */
+    private Path ringDirectory;
+    private RingPrefault ringPrefault = RingPrefault.NONE;
+    private boolean multiProducer;
+    private SlowSubscriberPolicy slowSubscriberPolicy = SlowSubscriberPolicy.BLOCK;
+    private int maxSubscribers = 16;
+    /* null when journaling is disabled */
+    private Path journalDirectory;
+    private int journalSegmentSize = 1 << 26; //64 MBytes
+    /* 0 for no limit */
+    private long journalRetentionSize;
+    private long journalRetentionMillis;
+    private int sessionPoolSize;
+    /* null when not set */
+    private SessionLayout sessionLayout;
+    private int acceptBacklog = 64;
+    private int handshakeThreads = 4;
+    /* Set on the server side of a session whose client writes with multiple producers */
+    private boolean remoteMultiProducer;
+
+    /**
+     * Sets the size of both rings of the socket.
+     */
+    public SMSocketOptions setRingSize(int ringSize) {
+        setInputRingSize(ringSize);
+        return setOutputRingSize(ringSize);
+    }
+
+    /**
+     * Sets the size of the ring the socket reads from. Must be a power of 2.
+     */
+    public SMSocketOptions setInputRingSize(int inputRingSize) {
+        this.inputRingSize = checkRingSize(inputRingSize);
+        return this;
+    }
+
+    public int getInputRingSize() {
+        return inputRingSize != 0 ? inputRingSize : SMStream.MAPPED_SIZE;
+    }
+
+    /**
+     * Sets the size of the ring the socket writes to. Must be a power of 2.
+     */
+    public SMSocketOptions setOutputRingSize(int outputRingSize) {
+        this.outputRingSize = checkRingSize(outputRingSize);
+        return this;
+    }
+
+    public int getOutputRingSize() {
+        return outputRingSize != 0 ? outputRingSize : SMStream.MAPPED_SIZE;
+    }
+
+    /**
+     * Sets the alignment of the records in the rings. Must be a power of 2, defaults to {@link SMStream#CACHE_LINE}.
+     */
+    public SMSocketOptions setAlignment(int alignment) {
+        if (Integer.bitCount(alignment) != 1 || alignment < MIN_ALIGNMENT || alignment > MIN_RING_SIZE) {
+            throw new IllegalArgumentException("Alignment must be a power of 2 between " + MIN_ALIGNMENT + " and " + MIN_RING_SIZE + " : " + alignment);
+        }
+        this.alignment = alignment;
+        return this;
+    }
+
+    public int getAlignment() {
+        return alignment != 0 ? alignment : SMStream.CACHE_LINE;
+    }
+
+    /**
+     * Sets the number of segments of both rings, each one of the ring size, so that up to
+     * {@link #MAX_RING_SIZE} times {@link #MAX_RING_SEGMENTS} bytes can be in flight. Must be a power of 2, defaults
+     * to 1.
+     */
+    public SMSocketOptions setRingSegments(int ringSegments) {
+        this.ringSegments = checkRingSegments(ringSegments);
+        return this;
+    }
+
+    public int getRingSegments() {
+        return ringSegments != 0 ? ringSegments : 1;
+    }
+
+    /**
+     * Sets the largest number of segments a server accepts to map for a client, defaults to its own number of segments
+     * so that a client cannot make it map more unless allowed to.
+     */
+    public SMSocketOptions setMaxRingSegments(int maxRingSegments) {
+        this.maxRingSegments = checkRingSegments(maxRingSegments);
+        return this;
+    }
+
+    public int getMaxRingSegments() {
+        return maxRingSegments != 0 ? maxRingSegments : getRingSegments();
+    }
+
+    /**
+     * Sets how records are laid out in the rings, defaults to {@link RecordFraming#ALIGNED}.
+     */
+    public SMSocketOptions setRecordFraming(RecordFraming recordFraming) {
+        if (recordFraming == null) {
+            throw new NullPointerException();
+        }
+        this.recordFraming = recordFraming;
+        return this;
+    }
+
+    public RecordFraming getRecordFraming() {
+        return recordFraming != null ? recordFraming : RecordFraming.ALIGNED;
+    }
+
+    /**
+     * Sets the largest ring a server accepts to map for a client, defaults to the larger of its own rings so that a
+     * client cannot make it map more unless allowed to.
+     */
+    public SMSocketOptions setMaxRingSize(int maxRingSize) {
+        this.maxRingSize = checkRingSize(maxRingSize);
+        return this;
+    }
+
+    public int getMaxRingSize() {
+        return maxRingSize != 0 ? maxRingSize : Math.max(getInputRingSize(), getOutputRingSize());
+    }
+
+    /**
+     * Sets what writes do when the ring is full. Not negotiated.
+     */
+    public SMSocketOptions setRingFullPolicy(RingFullPolicy ringFullPolicy) {
+        if (ringFullPolicy == null) {
+            throw new NullPointerException();
+        }
+        this.ringFullPolicy = ringFullPolicy;
+        return this;
+    }
+
+    public RingFullPolicy getRingFullPolicy() {
+        return ringFullPolicy;
+    }
+
+    /**
+     * Sets how reads wait for data, and blocked writes for the reader. Not negotiated.
+     */
+    public SMSocketOptions setWaitStrategy(WaitStrategy waitStrategy) {
+        if (waitStrategy == null) {
+            throw new NullPointerException();
+        }
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Combines the writes smaller than the given threshold in a single record, published once it holds threshold
+     * bytes, on flush or at most the given delay after. Disabled by default, not negotiated.
+     *
+     * @param threshold size of the combined records, 0 to disable write combining
+     */
+    public SMSocketOptions setWriteCombining(int threshold, long delay, TimeUnit unit) {
+        if (threshold < 0 || (threshold > 0 && delay <= 0)) {
+            throw new IllegalArgumentException("Invalid write combining : " + threshold + "/" + delay);
+        }
+        this.writeCombiningThreshold = threshold;
+        this.writeCombiningDelayNanos = threshold > 0 ? unit.toNanos(delay) : 0;
+        return this;
+    }
+
+    public int getWriteCombiningThreshold() {
+        return writeCombiningThreshold;
+    }
+
+    public long getWriteCombiningDelay(TimeUnit unit) {
+        return unit.convert(writeCombiningDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the directory the rings of accepted sockets are created in, such as a tmpfs or hugetlbfs mount. Defaults
+     * to the directory of the server, moved to /dev/shm when backed by a disk. Only used by servers.
+     */
+    public SMSocketOptions setRingDirectory(Path ringDirectory) {
+        this.ringDirectory = ringDirectory;
+        return this;
+    }
+
+    public Path getRingDirectory() {
+        return ringDirectory;
+    }
+
+    /**
+     * Sets how the pages of the rings are faulted in when connecting, defaults to {@link RingPrefault#NONE}. Not
+     * negotiated.
+     */
+    public SMSocketOptions setRingPrefault(RingPrefault ringPrefault) {
+        if (ringPrefault == null) {
+            throw new NullPointerException();
+        }
+        this.ringPrefault = ringPrefault;
+        return this;
+    }
+
+    public RingPrefault getRingPrefault() {
+        return ringPrefault;
+    }
+
+    /**
+     * Lets several threads write to the output stream of the socket concurrently, each write being a single record
+     * of at most {@link SMOutputStream#getMaxClaimLength()} bytes, empty ones being dropped. Excludes write combining
+     * and claims. Disabled by default, sent to the server which creates the ring accordingly.
+     */
+    public SMSocketOptions setMultiProducer(boolean multiProducer) {
+        this.multiProducer = multiProducer;
+        return this;
+    }
+
+    public boolean isMultiProducer() {
+        return multiProducer;
+    }
+
+    /**
+     * Sets what a publisher does when a subscriber falls a ring behind, defaults to
+     * {@link SlowSubscriberPolicy#BLOCK}. Only used by publishers.
+     */
+    public SMSocketOptions setSlowSubscriberPolicy(SlowSubscriberPolicy slowSubscriberPolicy) {
+        if (slowSubscriberPolicy == null) {
+            throw new NullPointerException();
+        }
+        this.slowSubscriberPolicy = slowSubscriberPolicy;
+        return this;
+    }
+
+    public SlowSubscriberPolicy getSlowSubscriberPolicy() {
+        return slowSubscriberPolicy;
+    }
+
+    /**
+     * Sets the number of subscribers a publisher has room for, up to {@link #MAX_SUBSCRIBERS}, defaults to 16. Only
+     * used by publishers.
+     */
+    public SMSocketOptions setMaxSubscribers(int maxSubscribers) {
+        if (maxSubscribers <= 0 || maxSubscribers > MAX_SUBSCRIBERS) {
+            throw new IllegalArgumentException("Max subscribers must be between 1 and " + MAX_SUBSCRIBERS + " : " + maxSubscribers);
+        }
+        this.maxSubscribers = maxSubscribers;
+        return this;
+    }
+
+    public int getMaxSubscribers() {
+        return maxSubscribers;
+    }
+
+    /**
+     * Appends every record written by the output streams to the {@link SMJournal} of the given directory, before
+     * publishing it in the ring. Disabled by default, not negotiated. Only one stream can write to a journal at a
+     * time, so a server journals each accepted session in the sub-directory named after its session file.
+     */
+    public SMSocketOptions setJournalDirectory(Path journalDirectory) {
+        this.journalDirectory = journalDirectory;
+        return this;
+    }
+
+    public Path getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    /**
+     * Sets the size of the segment files of the journals created, a power of 2 between {@link #MIN_RING_SIZE} and
+     * {@link #MAX_RING_SIZE}, defaults to 64 MBytes.
+     */
+    public SMSocketOptions setJournalSegmentSize(int journalSegmentSize) {
+        this.journalSegmentSize = checkRingSize(journalSegmentSize);
+        return this;
+    }
+
+    public int getJournalSegmentSize() {
+        return journalSegmentSize;
+    }
+
+    /**
+     * Deletes the oldest segments of the journals once they hold more than the given number of bytes, or were
+     * written longer than the given age ago. Unlimited by default.
+     *
+     * @param size maximum size of a journal, 0 for no limit
+     * @param age  maximum age of the records of a journal, 0 for no limit
+     */
+    public SMSocketOptions setJournalRetention(long size, long age, TimeUnit unit) {
+        if (size < 0 || age < 0) {
+            throw new IllegalArgumentException("Invalid journal retention : " + size + "/" + age);
+        }
+        this.journalRetentionSize = size;
+        this.journalRetentionMillis = unit.toMillis(age);
+        return this;
+    }
+
+    public long getJournalRetentionSize() {
+        return journalRetentionSize;
+    }
+
+    public long getJournalRetentionAge(TimeUnit unit) {
+        return unit.convert(journalRetentionMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keeps the given number of sessions whose rings are created, mapped and prefaulted ahead of the connections,
+     * {@link RingPrefault#TOUCH touched} if no prefault is set. Clients requesting the ring geometry of the server
+     * are handed one of them rather than having rings created, and the rings are reset rather than deleted once
+     * closed. Disabled by default, only used by servers.
+     *
+     * @param sessionPoolSize number of pooled sessions, 0 to disable pooling
+     */
+    public SMSocketOptions setSessionPoolSize(int sessionPoolSize) {
+        if (sessionPoolSize < 0) {
+            throw new IllegalArgumentException("Session pool size must be positive : " + sessionPoolSize);
+        }
+        this.sessionPoolSize = sessionPoolSize;
+        return this;
+    }
+
+    public int getSessionPoolSize() {
+        return sessionPoolSize;
+    }
+
+    /**
+     * Sets how the files of a session are laid out, defaults to {@link SessionLayout#SEPARATE_FILES}. The layout
+     * requested by the client wins over the one of the server.
+     */
+    public SMSocketOptions setSessionLayout(SessionLayout sessionLayout) {
+        if (sessionLayout == null) {
+            throw new NullPointerException();
+        }
+        this.sessionLayout = sessionLayout;
+        return this;
+    }
+
+    public SessionLayout getSessionLayout() {
+        return sessionLayout != null ? sessionLayout : SessionLayout.SEPARATE_FILES;
+    }
+
+    /**
+     * Sets the number of connections a server handshakes or holds accepted ahead of {@link SMServerSocket#accept()},
+     * the other clients waiting in the listen queue. Only used by servers.
+     */
+    public SMSocketOptions setAcceptBacklog(int acceptBacklog) {
+        if (acceptBacklog <= 0) {
+            throw new IllegalArgumentException("Accept backlog must be strictly positive : " + acceptBacklog);
+        }
+        this.acceptBacklog = acceptBacklog;
+        return this;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * Sets the number of threads of a server handshaking with clients in parallel, so that a slow client does not
+     * delay the others. Only used by servers.
+     */
+    public SMSocketOptions setHandshakeThreads(int handshakeThreads) {
+        if (handshakeThreads <= 0) {
+            throw new IllegalArgumentException("Handshake thread count must be strictly positive : " + handshakeThreads);
+        }
+        this.handshakeThreads = handshakeThreads;
+        return this;
+    }
+
+    public int getHandshakeThreads() {
+        return handshakeThreads;
+    }
+
+    /**
+     * @return the options of the server side of a session requested with the given client options
+     */
+    SMSocketOptions accept(int clientInputRingSize, int clientOutputRingSize, int clientAlignment, RecordFraming clientRecordFraming, int clientRingSegments, boolean clientMultiProducer, SessionLayout clientSessionLayout) {
+        SMSocketOptions result = clone();
+        result.inputRingSize = Math.min(clientOutputRingSize != 0 ? clientOutputRingSize : getInputRingSize(), getMaxRingSize());
+        result.outputRingSize = Math.min(clientInputRingSize != 0 ? clientInputRingSize : getOutputRingSize(), getMaxRingSize());
+        result.alignment = Math.max(clientAlignment != 0 ? clientAlignment : SMStream.CACHE_LINE, getAlignment());
+        result.recordFraming = clientRecordFraming != null ? clientRecordFraming : getRecordFraming();
+        result.ringSegments = Math.min(clientRingSegments != 0 ? clientRingSegments : getRingSegments(), getMaxRingSegments());
+        result.remoteMultiProducer = clientMultiProducer;
+        result.sessionLayout = clientSessionLayout != null ? clientSessionLayout : getSessionLayout();
+        return result;
+    }
+
+    boolean isRemoteMultiProducer() {
+        return remoteMultiProducer;
+    }
+
+    /**
+     * @return true if the given options lay the rings of a session out as these ones do
+     */
+    boolean hasSameRings(SMSocketOptions other) {
+        return getInputRingSize() == other.getInputRingSize() && getOutputRingSize() == other.getOutputRingSize()
+                && getRingSegments() == other.getRingSegments() && getAlignment() == other.getAlignment()
+                && getRecordFraming() == other.getRecordFraming() && multiProducer == other.multiProducer
+                && remoteMultiProducer == other.remoteMultiProducer;
+    }
+
+    /* Raw values, 0 when not set, sent to the server when connecting */
+
+    int requestedInputRingSize() {
+        return inputRingSize;
+    }
+
+    int requestedOutputRingSize() {
+        return outputRingSize;
+    }
+
+    int requestedAlignment() {
+        return alignment;
+    }
+
+    RecordFraming requestedRecordFraming() {
+        return recordFraming;
+    }
+
+    int requestedRingSegments() {
+        return ringSegments;
+    }
+
+    SessionLayout requestedSessionLayout() {
+        return sessionLayout;
+    }
+
+    private static int checkRingSize(int ringSize) {
+        if (Integer.bitCount(ringSize) != 1 || ringSize < MIN_RING_SIZE || ringSize > MAX_RING_SIZE) {
+            throw new IllegalArgumentException("Ring size must be a power of 2 between " + MIN_RING_SIZE + " and " + MAX_RING_SIZE + " : " + ringSize);
+        }
+        return ringSize;
+    }
+
+    private static int checkRingSegments(int ringSegments) {
+        if (Integer.bitCount(ringSegments) != 1 || ringSegments > MAX_RING_SEGMENTS) {
+            throw new IllegalArgumentException("Ring segments must be a power of 2 up to " + MAX_RING_SEGMENTS + " : " + ringSegments);
+        }
+        return ringSegments;
+    }
+
+    @Override
+    public SMSocketOptions clone() {
+        try {
+            return (SMSocketOptions) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
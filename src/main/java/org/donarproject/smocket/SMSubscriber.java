@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.donarproject.smocket.SMStream.HEADER_SIZE;
+
+/**
+ * Reader of the ring of a {@link SMPublisher}, mapped read only, with its own cursor.
+ * <p>
+ * A subscriber reads the messages published after it joined. When the publisher drops slow subscribers, messages
+ * are copied out of the ring and checked not to have been overwritten before being handed, and a dropped subscriber
+ * fails to read until it {@link #rejoin() rejoins}.
+ */
+public class SMSubscriber implements Closeable {
+    private final static long OPEN_TIMEOUT = 5;
+
+    private final FileChannel fc;
+    private final SMRing ring;
+    private final SMCursorTable cursors;
+    private final int slot;
+    private final FileLock slotLock;
+    /* True if the publisher may overwrite the messages being read */
+    private final boolean copying;
+    private final WaitStrategy waitStrategy;
+    private long cursor;
+    /* Last publisher position read from the ring */
+    private long tail;
+    /* Read only views of the segments of the ring handed to record handlers */
+    private ByteBuffer[] views;
+    /* Copies of the messages when the publisher drops slow subscribers */
+    private ByteBuffer copy;
+    private boolean closed = false;
+    private final Object closeLock = new Object();
+
+    public SMSubscriber(Path address) throws IOException {
+        this(address, new SMSocketOptions());
+    }
+
+    /**
+     * Joins the publisher of the given ring, waiting for data with the wait strategy of the given options.
+     */
+    public SMSubscriber(Path address, SMSocketOptions options) throws IOException {
+        this(SMUtils.openSharedFile(address), options);
+    }
+
+    /**
+     * Joins the publisher of the given ring, waiting for data with the wait strategy of the given options.
+     */
+    public SMSubscriber(FileChannel fc, SMSocketOptions options) throws IOException {
+        this.fc = fc;
+        this.waitStrategy = options.getWaitStrategy();
+        try {
+            ring = SMRing.open(fc, FileChannel.MapMode.READ_ONLY, SMRing.PAGE_SIZE, OPEN_TIMEOUT, TimeUnit.SECONDS);
+            cursors = SMCursorTable.open(fc, ring.mappedSize(), OPEN_TIMEOUT, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            fc.close();
+            throw new IOException(e);
+        }
+        int _slot = -1;
+        FileLock lock = null;
+        for (int i = 0; i < cursors.slots() && lock == null; ++i) {
+            lock = cursors.tryLock(i);
+            _slot = i;
+        }
+        if (lock == null) {
+            fc.close();
+            throw new IOException("No subscriber slot left out of " + cursors.slots());
+        }
+        this.slot = _slot;
+        this.slotLock = lock;
+        this.copying = cursors.policy() == SlowSubscriberPolicy.DROP;
+        join();
+        ring.prefault(options.getRingPrefault(), false);
+    }
+
+    /**
+     * Starts reading from the current position of the publisher.
+     */
+    private void join() {
+        cursors.publishCursor(slot, ring.tail());
+        /* A full fence : the publisher either sees the subscriber active or has not written past the position read after */
+        cursors.casState(slot, cursors.state(slot), SMCursorTable.ACTIVE);
+        cursor = tail = ring.tail();
+        cursors.publishCursor(slot, cursor);
+    }
+
+    /**
+     * Hands the messages already published to the given handler, without waiting.
+     * <p>
+     * The handler receives a read only view of the ring whose position and limit frame the message, or a view of
+     * a copy when the publisher drops slow subscribers. The view is only valid until the handler returns.
+     *
+     * @param limit maximum number of messages to handle
+     * @return the number of messages handled, or -1 once the publisher is closed
+     * @throws IOException if dropped by the publisher
+     */
+    public int poll(RecordHandler handler, int limit) throws IOException {
+        checkOpen();
+        final SMRing _ring = ring;
+        int count = 0;
+        while (count < limit) {
+            if (cursor == tail && (tail = _ring.tail()) == cursor) {
+                if (count == 0 && _ring.isWriterClosed() && (tail = _ring.tail()) == cursor) {
+                    return -1;
+                }
+                break;
+            }
+            final MappedMemory memory = _ring.memory(cursor);
+            final int offset = _ring.offset(cursor);
+            final int length = memory.getInt(offset);
+            if (copying) {
+                checkNotDropped();
+            }
+            if (length < 0) {
+                /* Padding up to the end of the segment */
+                cursor -= length;
+                continue;
+            }
+            if (copying) {
+                handler.onRecord(copy(memory, offset + HEADER_SIZE, length), 0, length);
+            } else {
+                final ByteBuffer view = view(cursor);
+                view.clear();
+                view.position(offset + HEADER_SIZE).limit(offset + HEADER_SIZE + length);
+                handler.onRecord(view, offset + HEADER_SIZE, length);
+            }
+            cursor += _ring.recordLength(length);
+            cursors.publishCursor(slot, cursor);
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Waits for a message then hands the messages already published to the given handler, as
+     * {@link #poll(RecordHandler, int)} does.
+     *
+     * @param limit maximum number of messages to handle
+     * @return the number of messages handled, or -1 once the publisher is closed
+     * @throws IOException if dropped by the publisher
+     */
+    public int take(RecordHandler handler, int limit) throws IOException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive : " + limit);
+        }
+        int attempt = 0;
+        int count;
+        while ((count = poll(handler, limit)) == 0) {
+            waitStrategy.idle(attempt++);
+        }
+        return count;
+    }
+
+    /**
+     * @return true if the publisher has dropped this subscriber for being too slow
+     */
+    public boolean isDropped() {
+        return cursors.state(slot) == SMCursorTable.DROPPED;
+    }
+
+    /**
+     * Reads again from the current position of the publisher after being dropped, skipping the messages published
+     * in between.
+     */
+    public void rejoin() throws IOException {
+        checkOpen();
+        if (!isDropped()) {
+            throw new IllegalStateException("Subscriber has not been dropped");
+        }
+        join();
+    }
+
+    /**
+     * Copies a message out of the ring, checking the publisher has not overwritten it meanwhile.
+     */
+    private ByteBuffer copy(MappedMemory memory, int offset, int length) throws IOException {
+        if (length > memory.size() - offset) {
+            /* Only a message being overwritten can have such a length */
+            checkNotDropped();
+            throw new IOException("Corrupted ring : " + length);
+        }
+        if (copy == null || copy.capacity() < length) {
+            copy = ByteBuffer.allocate(Math.max(length, 1 << 12));
+        }
+        memory.getBytes(offset, copy.array(), 0, length);
+        checkNotDropped();
+        copy.clear();
+        copy.limit(length);
+        return copy;
+    }
+
+    /**
+     * Fails if the publisher dropped this subscriber, which it does before overwriting anything it has not read.
+     */
+    private void checkNotDropped() throws IOException {
+        MappedMemory.loadFence();
+        if (cursors.state(slot) != SMCursorTable.ACTIVE) {
+            throw new IOException("Subscriber dropped by the publisher");
+        }
+    }
+
+    /**
+     * @return the read only view of the segment holding the given position
+     */
+    private ByteBuffer view(long position) {
+        if (views == null) {
+            views = new ByteBuffer[ring.segmentCount()];
+        }
+        final int segment = ring.segment(position);
+        ByteBuffer view = views[segment];
+        if (view == null) {
+            view = views[segment] = ring.memory(position).buffer().asReadOnlyBuffer();
+        }
+        return view;
+    }
+
+    private void checkOpen() throws IOException {
+        if (isClosed()) {
+            throw new IOException("Subscriber is closed");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (closeLock) {
+            if (closed)
+                return;
+            closed = true;
+            if (fc.isOpen()) {
+                cursors.setState(slot, SMCursorTable.FREE);
+                slotLock.release();
+            }
+            fc.close();
+        }
+    }
+
+    public boolean isClosed() {
+        synchronized (closeLock) {
+            return closed;
+        }
+    }
+}
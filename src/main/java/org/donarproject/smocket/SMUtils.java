@@ -16,108 +16,126 @@
 
 package org.donarproject.smocket;
 
+import com.sun.jna.Platform;
+import com.sun.jna.platform.win32.Kernel32;
+import com.sun.jna.platform.win32.WinDef;
+import com.sun.jna.platform.win32.WinNT;
+
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 enum SMUtils {
     instance;
 
-    WatchService watchService;
-
-    SMUtils() {
-        try {
-            watchService = FileSystems.getDefault().newWatchService();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private final static Logger LOGGER = Logger.getLogger(SMUtils.class.getName());
+    private final static Path SHARED_MEMORY = Paths.get("/dev/shm");
+    /* Number of sessions the shared memory file system must have room for to relocate rings to it */
+    private final static int RELOCATION_SESSIONS = 64;
+
+    /**
+     * @return the size of the pages of the file system holding the given directory, the huge page size on hugetlbfs
+     */
+    static int pageSize(Path directory) throws IOException {
+        if (!"hugetlbfs".equals(Files.getFileStore(directory).type())) {
+            return SMRing.PAGE_SIZE;
         }
+        /* Default huge page size, the one of mounts without a pagesize option */
+        for (String line : Files.readAllLines(Paths.get("/proc/meminfo"), StandardCharsets.US_ASCII)) {
+            if (line.startsWith("Hugepagesize:")) {
+                return Integer.parseInt(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        }
+        throw new IOException("Cannot find the huge page size of " + directory);
     }
 
-    Path waitForFileCreation(Path directory, String waitingFor) throws IOException, InterruptedException, TimeoutException {
-        return waitForFileEvent(directory, waitingFor, StandardWatchEventKinds.ENTRY_CREATE, -1, null);
-    }
-
-    Path waitForFileCreation(Path directory, String waitingFor, long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
-        return waitForFileEvent(directory, waitingFor, StandardWatchEventKinds.ENTRY_CREATE, timeout, unit);
-    }
-
-    Path waitForFileDeletion(Path directory, String waitingFor) throws IOException, InterruptedException, TimeoutException {
-        return waitForFileEvent(directory, waitingFor, StandardWatchEventKinds.ENTRY_DELETE, -1, null);
+    /**
+     * Chooses the directory to create rings in, so that their pages are not written back to a disk.
+     *
+     * @param relocate      true to move the rings from a disk backed directory to the shared memory file system
+     * @param sessionSize   number of bytes taken by the rings of a session
+     * @return the given directory, or the shared memory file system if the rings are relocated to it
+     */
+    static Path ringDirectory(Path directory, boolean relocate, long sessionSize) throws IOException {
+        final String type = Files.getFileStore(directory).type();
+        if (isMemoryBacked(type)) {
+            LOGGER.fine("Rings in " + directory + " (" + type + ")");
+            return directory;
+        }
+        if (relocate && Files.isDirectory(SHARED_MEMORY)) {
+            final FileStore store = Files.getFileStore(SHARED_MEMORY);
+            if (isMemoryBacked(store.type()) && store.getUsableSpace() >= RELOCATION_SESSIONS * sessionSize) {
+                LOGGER.info("Rings moved from " + directory + " (" + type + ") to " + SHARED_MEMORY + " (" + store.type() + ") to avoid disk write back");
+                return SHARED_MEMORY;
+            }
+        }
+        LOGGER.warning("Rings in " + directory + " (" + type + ") are written back to disk"
+                + (Platform.isWindows() ? ", only delayed by marking them as temporary" : "") + ", set a memory backed ring directory to avoid it");
+        return directory;
     }
 
-    Path waitForFileDeletion(Path directory, String waitingFor, long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
-        return waitForFileEvent(directory, waitingFor, StandardWatchEventKinds.ENTRY_DELETE, timeout, unit);
+    private static boolean isMemoryBacked(String fileStoreType) {
+        return "tmpfs".equals(fileStoreType) || "ramfs".equals(fileStoreType) || "hugetlbfs".equals(fileStoreType);
     }
 
-    synchronized Path waitForFileEvent(Path directory, String waitingFor, WatchEvent.Kind<?> eventKind, long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
-        WatchKey watchKey = directory.register(watchService, eventKind);
-        for (; ; ) {
-            WatchKey key;
-            if (eventKind == StandardWatchEventKinds.ENTRY_CREATE && Files.exists(directory.resolve(waitingFor))) {
-                watchKey.cancel();
-                return directory.resolve(waitingFor);
-            } else if (eventKind == StandardWatchEventKinds.ENTRY_DELETE && !Files.exists(directory.resolve(waitingFor))) {
-                watchKey.cancel();
-                return directory.resolve(waitingFor);
-            }
-            if (timeout != -1) {
-                key = watchService.poll(timeout, unit);
-            } else {
-                key = watchService.take();
-            }
-
-            if(key == null)
-                throw new TimeoutException("Timeout exceed while waiting for " + directory.resolve(waitingFor).toString());
-            if(key != watchKey) {
-                continue;
+    /**
+     * Creates a file the other end points open by name. On Windows, it is deleted once the last handle is closed.
+     * Elsewhere, deleting it on close would unlink it as soon as it is opened, so its creator deletes it with
+     * {@link #deleteExchangeFile(Path)}.
+     */
+    static FileChannel createExchangeFile(Path path) throws IOException {
+        Set<StandardOpenOption> options = new HashSet<>();
+        options.add(StandardOpenOption.CREATE);
+        if (Platform.isWindows()) {
+            options.add(StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        options.add(StandardOpenOption.WRITE);
+        options.add(StandardOpenOption.READ);
+        FileChannel fc = FileSystems.getDefault().provider().newFileChannel(path, options);
+        if (Platform.isWindows()) {
+            /* Keeps the pages of the file in the cache rather than writing them back, as far as memory allows */
+            final String name = path.toAbsolutePath().toString();
+            final int attributes = Kernel32.INSTANCE.GetFileAttributes(name);
+            if (attributes == WinNT.INVALID_FILE_ATTRIBUTES
+                    || !Kernel32.INSTANCE.SetFileAttributes(name, new WinDef.DWORD(attributes | WinNT.FILE_ATTRIBUTE_TEMPORARY))) {
+                LOGGER.warning("Cannot mark " + path + " as temporary");
             }
-            for (WatchEvent<?> event : key.pollEvents()) {
-                WatchEvent.Kind<?> kind = event.kind();
-
-                if (kind == StandardWatchEventKinds.OVERFLOW) {
-                    continue;
-                }
-                if (kind == eventKind) {
-                    WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                    Path filename = ev.context();
-                    /* Ensure file name is relative */
-                    if (filename.isAbsolute()) {
-                        filename = filename.getFileName();
-                    }
-                    String name = filename.toString();
-
-                    if (waitingFor.equals(name)) {
-                        key.cancel();
-                        return directory.resolve(name);
-                    }
-                }
+        }
+        return fc;
+    }
 
-            }
-            boolean valid = key.reset();
-            if (!valid) {
-                key.cancel();
-                break;
-            }
+    /**
+     * Deletes a file created with {@link #createExchangeFile(Path)}, the channels opened on it and their mappings
+     * staying valid. Does nothing on Windows, where it is deleted once closed.
+     */
+    static void deleteExchangeFile(Path path) {
+        if (Platform.isWindows()) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot delete " + path, e);
         }
-        watchKey.cancel();
-        return null;
     }
 
-    static FileChannel createDeleteOnExitFile(Path path) throws IOException {
+    /**
+     * Opens a file created by another end point, which deletes it once done with it.
+     */
+    static FileChannel openSharedFile(Path path) throws IOException {
         Set<StandardOpenOption> options = new HashSet<>();
-        options.add(StandardOpenOption.CREATE);
-        options.add(StandardOpenOption.DELETE_ON_CLOSE);
         options.add(StandardOpenOption.WRITE);
+        options.add(StandardOpenOption.READ);
         return FileSystems.getDefault().provider().newFileChannel(path, options);
     }
 
-    static FileChannel createExchangeFile(Path path) throws IOException {
+    static FileChannel openExchangeFile(Path path) throws IOException {
         Set<StandardOpenOption> options = new HashSet<>();
-        options.add(StandardOpenOption.CREATE);
         options.add(StandardOpenOption.DELETE_ON_CLOSE);
         options.add(StandardOpenOption.WRITE);
         options.add(StandardOpenOption.READ);
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Opens and closes sessions one after the other, each one exchanging a single message, and reports the resident
+ * memory, number of mappings and number of open file descriptors of the process every few sessions. All three stay
+ * flat when the rings of closed sessions are released eagerly, whatever the garbage collector does.
+ * <p>
+ * Usage : {@code SessionChurnBenchmark [directory [sessions [ring size]]]}, the figures being read from /proc.
+ */
+public class SessionChurnBenchmark {
+    private final static String PORT = "7790";
+    private final static int REPORT_INTERVAL = 500;
+    private final static int MESSAGE_SIZE = 256;
+
+    public static void main(String[] args) throws Exception {
+        final Path directory = Paths.get(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        final int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        final int ringSize = args.length > 2 ? Integer.parseInt(args[2]) : SMStream.MAPPED_SIZE;
+        final SMSocketOptions options = new SMSocketOptions().setRingSize(ringSize);
+        final SMServerSocket server = new SMServerSocket(directory.toString(), PORT, options);
+        final Thread acceptor = new Thread(() -> echo(server), "SessionChurnBenchmark acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        System.out.println(String.format("%10s %12s %12s %10s %10s", "Sessions", "Rate (/s)", "RSS (MB)", "Mappings", "Files"));
+        final byte[] message = new byte[MESSAGE_SIZE];
+        long time = System.nanoTime();
+        for (int i = 1; i <= sessions; ++i) {
+            try (SMSocket socket = new SMSocket(directory.toString(), PORT, options)) {
+                socket.getOutputStream().write(message, 0, message.length);
+                readFully(socket.getInputStream(), message);
+            }
+            if (i % REPORT_INTERVAL == 0) {
+                final long elapsed = System.nanoTime() - time;
+                System.out.println(String.format("%10d %12.0f %12.1f %10d %10d", i, REPORT_INTERVAL / (elapsed / 1000000000.),
+                        residentKBytes() / 1024., count(Paths.get("/proc/self/maps")), count(Paths.get("/proc/self/fd"))));
+                time = System.nanoTime();
+            }
+        }
+        server.close();
+    }
+
+    /**
+     * Sends back the message of each accepted session then closes it.
+     */
+    private static void echo(SMServerSocket server) {
+        try {
+            final byte[] message = new byte[MESSAGE_SIZE];
+            for (; ; ) {
+                final Iterable<SMSocket> sockets = server.accept();
+                if (sockets == null) {
+                    return;
+                }
+                for (SMSocket socket : sockets) {
+                    try (SMSocket _socket = socket) {
+                        readFully(_socket.getInputStream(), message);
+                        _socket.getOutputStream().write(message, 0, message.length);
+                        /* Until the client has read the message */
+                        _socket.getInputStream().read();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            if (!server.isClosed()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] message) throws IOException {
+        int read = 0;
+        while (read < message.length) {
+            final int _read = in.read(message, read, message.length - read);
+            if (_read < 0) {
+                throw new IOException("End of stream after " + read + " bytes");
+            }
+            read += _read;
+        }
+    }
+
+    /**
+     * @return the resident memory of the process, -1 if unknown
+     */
+    private static long residentKBytes() throws IOException {
+        final Path status = Paths.get("/proc/self/status");
+        if (!Files.exists(status)) {
+            return -1;
+        }
+        final List<String> lines = Files.readAllLines(status);
+        for (String line : lines) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of lines of the given file or of entries of the given directory, -1 if unknown
+     */
+    private static long count(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return -1;
+        }
+        if (Files.isDirectory(path)) {
+            long count = 0;
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                for (Path ignored : entries) {
+                    ++count;
+                }
+            }
+            return count;
+        }
+        try (Stream<String> lines = Files.lines(path)) {
+            return lines.count();
+        }
+    }
+}
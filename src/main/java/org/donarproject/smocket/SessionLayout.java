@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+/**
+ * How the files of a session are laid out.
+ */
+public enum SessionLayout {
+    /**
+     * Each ring has its own file, next to the session file, and each end point its own lock file.
+     */
+    SEPARATE_FILES,
+    /**
+     * The session file holds the control block of the session then both rings, and the locks of the end points.
+     * Rings cannot be pooled.
+     */
+    SINGLE_FILE
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+/**
+ * What a {@link SMPublisher} does when a subscriber has not read enough of the ring for a message.
+ */
+public enum SlowSubscriberPolicy {
+    /**
+     * Waits for the subscriber with the {@link WaitStrategy} of the publisher.
+     */
+    BLOCK,
+    /**
+     * Drops the subscriber, which can rejoin at the current position of the publisher. Subscribers then copy each
+     * message out of the ring before handing it, to detect the ones overwritten while being read.
+     */
+    DROP
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+/**
+ * How a reader, or a writer blocked on a full ring, waits for the other end point.
+ * <p>
+ * Implementations are stateless so that one instance can be shared by any number of sockets.
+ *
+ * @see BusySpinWaitStrategy
+ * @see YieldingWaitStrategy
+ * @see ParkingWaitStrategy
+ * @see BackoffWaitStrategy
+ */
+public interface WaitStrategy {
+    /**
+     * Called each time the ring has been found empty, or full.
+     *
+     * @param attempt number of consecutive unsuccessful attempts, starting from 0
+     */
+    void idle(int attempt);
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ping pong between two threads over a pair of rings, pausing between each ping so that the echoing thread spends
+ * most of its time waiting. Reports for each {@link WaitStrategy} the round trip latency percentiles and the CPU
+ * used by the echoing thread.
+ * <p>
+ * Usage : {@code WaitStrategyBenchmark [directory [messages [pause in micro seconds]]]}
+ */
+public class WaitStrategyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final Path directory = Paths.get(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        final int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        final long pauseNanos = (args.length > 2 ? Long.parseLong(args[2]) : 50) * 1000L;
+        final WaitStrategy[] strategies = {
+                new BusySpinWaitStrategy(),
+                new YieldingWaitStrategy(),
+                new ParkingWaitStrategy(),
+                new BackoffWaitStrategy()
+        };
+        System.out.println(String.format("%-24s %10s %10s %10s %10s", "Strategy", "p50 (us)", "p99 (us)", "p99.9 (us)", "CPU (%)"));
+        for (WaitStrategy strategy : strategies) {
+            /* Warm up */
+            run(directory, strategy, messages / 10, pauseNanos, false);
+            run(directory, strategy, messages, pauseNanos, true);
+        }
+    }
+
+    private static void run(Path directory, WaitStrategy strategy, int messages, long pauseNanos, boolean report) throws IOException, InterruptedException {
+        final Path ping = Files.createTempFile(directory, "ping", ".ring");
+        final Path pong = Files.createTempFile(directory, "pong", ".ring");
+        final SMSocketOptions options = new SMSocketOptions().setWaitStrategy(strategy).setRingSize(1 << 16);
+        /* Not a resource, closed once written to so that the echo thread ends */
+        final SMOutputStream pingOut = new SMOutputStream(open(ping), options);
+        try (SMInputStream pingIn = new SMInputStream(open(ping), null, options);
+             SMOutputStream pongOut = new SMOutputStream(open(pong), options);
+             SMInputStream pongIn = new SMInputStream(open(pong), null, options)) {
+            final long[] echoCpu = new long[1];
+            Thread echo = new Thread(() -> {
+                final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                final long cpu = threads.getCurrentThreadCpuTime();
+                final byte[] message = new byte[8];
+                try {
+                    while (readFully(pingIn, message)) {
+                        pongOut.write(message, 0, message.length);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                echoCpu[0] = threads.getCurrentThreadCpuTime() - cpu;
+            }, "Echo");
+            echo.start();
+
+            final long[] roundTrips = new long[messages];
+            final byte[] message = new byte[8];
+            final long time = System.nanoTime();
+            for (int i = 0; i < messages; ++i) {
+                LockSupport.parkNanos(pauseNanos);
+                final long start = System.nanoTime();
+                pingOut.write(message, 0, message.length);
+                readFully(pongIn, message);
+                roundTrips[i] = System.nanoTime() - start;
+            }
+            pingOut.close();
+            echo.join();
+            final long elapsed = System.nanoTime() - time;
+
+            if (!report) {
+                return;
+            }
+            Arrays.sort(roundTrips);
+            System.out.println(String.format("%-24s %10.1f %10.1f %10.1f %10.1f", strategy.getClass().getSimpleName(),
+                    roundTrips[messages / 2] / 1000., roundTrips[(int) (messages * 0.99)] / 1000.,
+                    roundTrips[(int) (messages * 0.999)] / 1000., 100. * echoCpu[0] / elapsed));
+        } finally {
+            pingOut.close();
+            Files.deleteIfExists(ping);
+            Files.deleteIfExists(pong);
+        }
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static boolean readFully(InputStream in, byte[] b) throws IOException {
+        int read = 0;
+        while (read < b.length) {
+            final int _read = in.read(b, read, b.length - read);
+            if (_read == -1) {
+                return false;
+            }
+            read += _read;
+        }
+        return true;
+    }
+}
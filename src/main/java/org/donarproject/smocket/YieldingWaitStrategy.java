@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+/**
+ * Spins for a while then yields the CPU to other threads, keeping the thread runnable.
+ */
+public class YieldingWaitStrategy implements WaitStrategy {
+    private final int spinTries;
+
+    public YieldingWaitStrategy() {
+        this(100);
+    }
+
+    public YieldingWaitStrategy(int spinTries) {
+        this.spinTries = spinTries;
+    }
+
+    @Override
+    public void idle(int attempt) {
+        if (attempt < spinTries) {
+            BusySpinWaitStrategy.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Raw access to a shared mapping, backed by a memory segment on Java 22+.
+ * <p>
+ * Offsets are relative to the start of the mapping and bounds checked by the segment. The volatile and ordered
+ * accessors are the only ones giving cross process visibility guarantees. The mapping belongs to a shared arena :
+ * unmapping it is deterministic, and any access afterwards fails with an {@link IllegalStateException} rather than
+ * crashing the JVM.
+ */
+final class MappedMemory {
+    private final static VarHandle INT = ValueLayout.JAVA_INT.varHandle();
+    private final static VarHandle LONG = ValueLayout.JAVA_LONG.varHandle();
+
+    private final Arena arena;
+    private final MemorySegment segment;
+    private final int size;
+
+    MappedMemory(FileChannel fc, long position, int size) throws IOException {
+        this(fc, FileChannel.MapMode.READ_WRITE, position, size);
+    }
+
+    MappedMemory(FileChannel fc, FileChannel.MapMode mode, long position, int size) throws IOException {
+        this.size = size;
+        arena = Arena.ofShared();
+        try {
+            segment = fc.map(mode, position, size, arena);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return a new view of the whole mapping
+     */
+    ByteBuffer buffer() {
+        return segment.asByteBuffer();
+    }
+
+    /**
+     * Reads the whole mapping in.
+     */
+    void load() {
+        segment.load();
+    }
+
+    /**
+     * Writes a zero on each page from the given offset up to the end of the mapping.
+     */
+    void touch(int offset, int pageSize) {
+        for (long page = offset; page < size; page += pageSize) {
+            segment.set(ValueLayout.JAVA_BYTE, page, (byte) 0);
+        }
+    }
+
+    /**
+     * Writes the changes made to the mapping back to the file.
+     */
+    void force() {
+        segment.force();
+    }
+
+    /**
+     * Releases the mapping right away. Neither this memory nor the views returned by {@link #buffer()} can be
+     * accessed afterwards.
+     */
+    void unmap() {
+        arena.close();
+    }
+
+    /**
+     * Locks the whole mapping in memory.
+     */
+    void lock() throws IOException {
+        NativeMemory.lock(segment.address(), size);
+    }
+
+    byte getByte(int offset) {
+        return segment.get(ValueLayout.JAVA_BYTE, offset);
+    }
+
+    void putByte(int offset, byte value) {
+        segment.set(ValueLayout.JAVA_BYTE, offset, value);
+    }
+
+    int getInt(int offset) {
+        return segment.get(ValueLayout.JAVA_INT_UNALIGNED, offset);
+    }
+
+    void putInt(int offset, int value) {
+        segment.set(ValueLayout.JAVA_INT_UNALIGNED, offset, value);
+    }
+
+    int getIntVolatile(int offset) {
+        return (int) INT.getVolatile(segment, (long) offset);
+    }
+
+    void putIntOrdered(int offset, int value) {
+        INT.setRelease(segment, (long) offset, value);
+    }
+
+    long getLongVolatile(int offset) {
+        return (long) LONG.getVolatile(segment, (long) offset);
+    }
+
+    void putLongOrdered(int offset, long value) {
+        LONG.setRelease(segment, (long) offset, value);
+    }
+
+    boolean compareAndSwapInt(int offset, int expected, int value) {
+        return INT.compareAndSet(segment, (long) offset, expected, value);
+    }
+
+    boolean compareAndSwapLong(int offset, long expected, long value) {
+        return LONG.compareAndSet(segment, (long) offset, expected, value);
+    }
+
+    /**
+     * Keeps the loads before the call from being reordered with the ones after it.
+     */
+    static void loadFence() {
+        VarHandle.acquireFence();
+    }
+
+    void clear(int offset, int len) {
+        segment.asSlice(offset, len).fill((byte) 0);
+    }
+
+    void getBytes(int offset, byte[] dst, int off, int len) {
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset, dst, off, len);
+    }
+
+    void putBytes(int offset, byte[] src, int off, int len) {
+        MemorySegment.copy(src, off, segment, ValueLayout.JAVA_BYTE, offset, len);
+    }
+
+    void putBytes(int offset, MappedMemory src, int srcOffset, int len) {
+        MemorySegment.copy(src.segment, srcOffset, segment, offset, len);
+    }
+
+    /**
+     * Copies the given number of bytes from the position of the given buffer, which is moved past them.
+     */
+    void putBytes(int offset, ByteBuffer src, int len) {
+        final int position = src.position();
+        /* The segment of a buffer starts at its position */
+        MemorySegment.copy(MemorySegment.ofBuffer(src), 0, segment, offset, len);
+        src.position(position + len);
+    }
+}
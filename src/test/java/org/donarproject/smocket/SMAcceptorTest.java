@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SMAcceptorTest {
+    private static final String PORT = "7777";
+
+    private Path directory;
+    private SMServerSocket server;
+    private Thread acceptor;
+    private final List<SMSocket> accepted = new ArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    /* Session files of the clients stalling their handshake */
+    private final List<Path> stalled = new ArrayList<>();
+    private final List<FileChannel> stalledChannels = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("smacceptor");
+        /* Room for two sockets between the handshake threads and the backlog */
+        server = new SMServerSocket(directory.toString(), PORT, new SMSocketOptions().setAcceptBacklog(2).setHandshakeThreads(2));
+        acceptor = new Thread(() -> {
+            try {
+                Iterable<SMSocket> sockets;
+                while ((sockets = server.accept()) != null) {
+                    for (SMSocket socket : sockets) {
+                        synchronized (accepted) {
+                            accepted.add(socket);
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                if (!server.isClosed()) {
+                    failure.set(e);
+                }
+            }
+        });
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        acceptor.join();
+        for (SMSocket socket : accepted) {
+            socket.close();
+        }
+        for (FileChannel fc : stalledChannels) {
+            fc.close();
+        }
+        for (Path file : stalled) {
+            Files.delete(file);
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test(timeout = 30000)
+    public void handshakesConcurrentClientsAroundAStalledOne() throws Exception {
+        stall("stalled");
+        awaitPending(1);
+        final int clients = 8;
+        final Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; ++i) {
+            threads[i] = new Thread(() -> {
+                try {
+                    new SMSocket(directory.toString(), PORT).close();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        /* Through the other handshake thread, while the stalled client holds one */
+        while (server.getCompletedHandshakes() < clients) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.getPendingHandshakes());
+        assertEquals(0, server.getTimedOutHandshakes());
+        /* Given up after the handshake timeout */
+        while (server.getTimedOutHandshakes() == 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, server.getPendingHandshakes());
+        assertEquals(clients, server.getCompletedHandshakes());
+        assertEquals(0, server.getFailedHandshakes());
+        synchronized (accepted) {
+            assertEquals(clients, accepted.size());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void interruptsTheHandshakesInProgressOnClose() throws Exception {
+        stall("stalled-1");
+        stall("stalled-2");
+        awaitPending(2);
+        final long time = System.nanoTime();
+        server.close();
+        awaitPending(0);
+        /* Well before the handshake timeout */
+        assertTrue(System.nanoTime() - time < TimeUnit.SECONDS.toNanos(2));
+        assertEquals(0, server.getCompletedHandshakes());
+        assertEquals(0, server.getTimedOutHandshakes());
+        assertEquals(0, server.getFailedHandshakes());
+    }
+
+    /**
+     * Requests a session as a client would, without ever writing its handshake.
+     */
+    private void stall(String name) throws Exception {
+        try (FileChannel fc = FileChannel.open(directory.resolve(PORT), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final SMListenQueue listenQueue = SMListenQueue.open(fc, 1, TimeUnit.SECONDS);
+            try {
+                listenQueue.awaitAccepting(1, TimeUnit.SECONDS);
+                final Path session = listenQueue.sessionDirectory().resolve(PORT + "_" + name);
+                stalledChannels.add(FileChannel.open(session, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+                stalled.add(session);
+                listenQueue.offer(PORT + "_" + name, 1, TimeUnit.SECONDS);
+            } finally {
+                listenQueue.unmap();
+            }
+        }
+    }
+
+    private void awaitPending(int pending) throws InterruptedException {
+        while (server.getPendingHandshakes() != pending) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SMHandshakeTest {
+    private static final int PAGE_SIZE = SMRing.PAGE_SIZE;
+
+    private Path directory;
+    private Path file;
+    private FileChannel clientFC;
+    private FileChannel serverFC;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("smhandshake");
+        file = directory.resolve("session");
+        clientFC = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        serverFC = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        clientFC.close();
+        serverFC.close();
+        Files.delete(file);
+        Files.delete(directory);
+    }
+
+    @Test
+    public void negotiatesTheRingsOfTheClient() throws Exception {
+        SMHandshake.request(clientFC, PAGE_SIZE, new SMSocketOptions().setInputRingSize(1 << 16).setOutputRingSize(1 << 14).setRecordFraming(RecordFraming.COMPACT));
+        final SMSocketOptions options = SMHandshake.accept(serverFC, PAGE_SIZE, new SMSocketOptions(), 1, TimeUnit.SECONDS);
+        /* The input ring of one side is the output ring of the other */
+        assertEquals(1 << 14, options.getInputRingSize());
+        assertEquals(1 << 16, options.getOutputRingSize());
+        assertEquals(RecordFraming.COMPACT, options.getRecordFraming());
+    }
+
+    @Test
+    public void capsTheRingsAtTheServerOnes() throws Exception {
+        SMHandshake.request(clientFC, PAGE_SIZE, new SMSocketOptions().setRingSize(SMSocketOptions.MAX_RING_SIZE).setRingSegments(SMSocketOptions.MAX_RING_SEGMENTS));
+        final SMSocketOptions options = SMHandshake.accept(serverFC, PAGE_SIZE, new SMSocketOptions().setRingSize(1 << 16), 1, TimeUnit.SECONDS);
+        assertEquals(1 << 16, options.getInputRingSize());
+        assertEquals(1 << 16, options.getOutputRingSize());
+        assertEquals(1, options.getRingSegments());
+    }
+
+    @Test
+    public void grantsLargerRingsOnceAllowed() throws Exception {
+        SMHandshake.request(clientFC, PAGE_SIZE, new SMSocketOptions().setRingSize(1 << 20).setRingSegments(4));
+        final SMSocketOptions server = new SMSocketOptions().setRingSize(1 << 16).setMaxRingSize(1 << 20).setMaxRingSegments(4);
+        final SMSocketOptions options = SMHandshake.accept(serverFC, PAGE_SIZE, server, 1, TimeUnit.SECONDS);
+        assertEquals(1 << 20, options.getInputRingSize());
+        assertEquals(1 << 20, options.getOutputRingSize());
+        assertEquals(4, options.getRingSegments());
+    }
+
+    @Test
+    public void answersWithTheRingsAndWaitsForTheAcknowledgement() throws Exception {
+        SMHandshake.request(clientFC, PAGE_SIZE, new SMSocketOptions());
+        SMHandshake.accept(serverFC, PAGE_SIZE, new SMSocketOptions(), 1, TimeUnit.SECONDS);
+        final Path rings = directory.resolve("rings");
+        SMHandshake.respond(serverFC, PAGE_SIZE, rings);
+        assertEquals(rings.toAbsolutePath(), SMHandshake.awaitResponse(clientFC, PAGE_SIZE, 1, TimeUnit.SECONDS));
+        SMHandshake.acknowledge(clientFC, PAGE_SIZE);
+        SMHandshake.awaitAcknowledgement(serverFC, PAGE_SIZE, 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void answersWithoutRingsInASingleFile() throws Exception {
+        SMHandshake.request(clientFC, PAGE_SIZE, new SMSocketOptions().setSessionLayout(SessionLayout.SINGLE_FILE));
+        final SMSocketOptions options = SMHandshake.accept(serverFC, PAGE_SIZE, new SMSocketOptions(), 1, TimeUnit.SECONDS);
+        assertEquals(SessionLayout.SINGLE_FILE, options.getSessionLayout());
+        SMHandshake.respond(serverFC, PAGE_SIZE, null);
+        assertNull(SMHandshake.awaitResponse(clientFC, PAGE_SIZE, 1, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void timesOutWithoutRequest() throws Exception {
+        SMHandshake.accept(serverFC, PAGE_SIZE, new SMSocketOptions(), 100, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(timeout = 10000)
+    public void givesUpOnceInterrupted() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread server = new Thread(() -> {
+            try {
+                SMHandshake.awaitAcknowledgement(serverFC, PAGE_SIZE, 1, TimeUnit.MINUTES);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        server.start();
+        Thread.sleep(100);
+        server.interrupt();
+        server.join();
+        assertTrue(String.valueOf(failure.get()), failure.get() instanceof InterruptedIOException);
+    }
+}
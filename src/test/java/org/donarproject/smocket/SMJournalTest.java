@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class SMJournalTest {
+    /* Four records per segment */
+    private static final int SEGMENT_SIZE = SMSocketOptions.MIN_RING_SIZE;
+    private static final int RECORD_LENGTH = 1000;
+
+    private Path directory;
+    private SMSocketOptions options;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("smjournal");
+        options = new SMSocketOptions().setJournalSegmentSize(SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        delete(directory);
+    }
+
+    @Test
+    public void pollsTheRecordsAppended() throws Exception {
+        final List<Long> positions = new ArrayList<>();
+        try (SMJournal journal = new SMJournal(directory, options)) {
+            for (int i = 0; i < 3; ++i) {
+                positions.add(journal.append(record(i)));
+            }
+            try (SMJournalReader reader = new SMJournalReader(directory, 0)) {
+                final List<Integer> records = new ArrayList<>();
+                assertEquals(3, reader.poll((buffer, offset, length) -> records.add(buffer.getInt(offset)), 16));
+                assertEquals(0, reader.poll((buffer, offset, length) -> fail(), 16));
+                assertEquals(3, records.size());
+                for (int i = 0; i < 3; ++i) {
+                    assertEquals(i, (int) records.get(i));
+                }
+                assertEquals(journal.getTailPosition(), reader.getPosition());
+            }
+            assertEquals(0L, (long) positions.get(0));
+        }
+    }
+
+    @Test
+    public void rollsToNewSegmentsOnceFull() throws Exception {
+        try (SMJournal journal = new SMJournal(directory, options)) {
+            for (int i = 0; i < 10; ++i) {
+                journal.append(record(i));
+            }
+        }
+        assertEquals(3, SMJournal.segments(directory).size());
+        /* Reopened, as a writer restarting would */
+        try (SMJournal journal = new SMJournal(directory, options)) {
+            journal.append(record(10));
+        }
+        try (SMJournalReader reader = new SMJournalReader(directory, 0)) {
+            assertEquals(11, readAll(reader, 0));
+        }
+    }
+
+    @Test
+    public void seeksToPositionsAndTimes() throws Exception {
+        try (SMJournal journal = new SMJournal(directory, options)) {
+            for (int i = 0; i < 8; ++i) {
+                journal.append(record(i));
+            }
+            Thread.sleep(20);
+            final long time = System.currentTimeMillis();
+            Thread.sleep(20);
+            final long position = journal.append(record(8));
+            try (SMJournalReader reader = new SMJournalReader(directory, 0)) {
+                reader.seek(position);
+                assertEquals(1, readAll(reader, 8));
+                /* From the last entry indexed before the time, the second segment */
+                reader.seekTime(time);
+                assertEquals(SEGMENT_SIZE, reader.getPosition());
+                assertEquals(5, readAll(reader, 4));
+                reader.seekTime(0);
+                assertEquals(0, reader.getPosition());
+                try {
+                    reader.seek(journal.getTailPosition() + SEGMENT_SIZE);
+                    fail();
+                } catch (IOException e) {
+                    /* Out of the journal */
+                }
+            }
+        }
+    }
+
+    @Test
+    public void deletesTheSegmentsOutOfRetention() throws Exception {
+        options.setJournalRetention(2 * SEGMENT_SIZE, 0, TimeUnit.MILLISECONDS);
+        try (SMJournal journal = new SMJournal(directory, options)) {
+            for (int i = 0; i < 20; ++i) {
+                journal.append(record(i));
+            }
+            assertEquals(2, SMJournal.segments(directory).size());
+            assertEquals(3 * SEGMENT_SIZE, journal.getStartPosition());
+            try {
+                new SMJournalReader(directory, 0).close();
+                fail();
+            } catch (IOException e) {
+                /* Deleted */
+            }
+            try (SMJournalReader reader = new SMJournalReader(directory, journal.getStartPosition())) {
+                assertEquals(8, readAll(reader, 12));
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void tailsTheRecordsAppendedLive() throws Exception {
+        final int records = 1000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        try (SMJournal journal = new SMJournal(directory, options)) {
+            final Thread tailer = new Thread(() -> {
+                try (SMJournalReader reader = new SMJournalReader(directory, 0)) {
+                    final int[] received = new int[1];
+                    while (received[0] < records) {
+                        reader.take((buffer, offset, length) -> assertEquals(received[0]++, buffer.getInt(offset)), 16);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            tailer.start();
+            for (int i = 0; i < records; ++i) {
+                journal.append(record(i));
+            }
+            tailer.join();
+        }
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void keepsThePositionsOnceClosed() throws Exception {
+        final SMJournal journal = new SMJournal(directory, options);
+        journal.append(record(0));
+        final SMJournalReader reader = new SMJournalReader(directory, 0);
+        reader.close();
+        journal.close();
+        assertEquals(0, journal.getStartPosition());
+        assertEquals(SMJournal.recordLength(RECORD_LENGTH), journal.getTailPosition());
+        assertEquals(0, reader.getStartPosition());
+        assertEquals(journal.getTailPosition(), reader.getTailPosition());
+        try {
+            reader.poll((buffer, offset, length) -> fail(), 16);
+            fail();
+        } catch (IOException e) {
+            /* Closed */
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void journalsEachAcceptedSessionApart() throws Exception {
+        final Path sockets = Files.createDirectory(directory.resolve("sockets"));
+        final Path journals = directory.resolve("journals");
+        SMSocketTest.echo(sockets, new SMSocketOptions().setJournalDirectory(journals), new SMSocketOptions());
+        final List<Path> sessions = list(journals);
+        assertEquals(3, sessions.size());
+        for (Path session : sessions) {
+            try (SMJournalReader reader = new SMJournalReader(session, 0)) {
+                /* The echo of "hello i", one record a byte */
+                assertEquals(7, readAll(reader, -1));
+            }
+        }
+    }
+
+    private static ByteBuffer record(int i) {
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+        record.putInt(0, i);
+        return record;
+    }
+
+    /**
+     * Polls every record of the given reader, checking they follow the given one if not negative.
+     *
+     * @return the number of records read
+     */
+    private static int readAll(SMJournalReader reader, int first) throws IOException {
+        final int[] next = {first};
+        int count = 0;
+        int polled;
+        while ((polled = reader.poll((buffer, offset, length) -> {
+            if (next[0] >= 0) {
+                assertEquals(next[0]++, buffer.getInt(offset));
+            }
+        }, 16)) > 0) {
+            count += polled;
+        }
+        return count;
+    }
+
+    private static List<Path> list(Path directory) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            for (Path file : list(path)) {
+                delete(file);
+            }
+        }
+        Files.delete(path);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SMListenQueueTest {
+    private Path directory;
+    private FileChannel serverFC;
+    private FileChannel clientFC;
+    private SMListenQueue server;
+    private SMListenQueue client;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("smlistenqueue");
+        final Path file = directory.resolve("port");
+        serverFC = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        server = SMListenQueue.create(serverFC, 4, directory);
+        clientFC = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        client = SMListenQueue.open(clientFC, 1, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.unmap();
+        server.unmap();
+        clientFC.close();
+        serverFC.close();
+        Files.delete(directory.resolve("port"));
+        Files.delete(directory);
+    }
+
+    @Test
+    public void publishesTheSessionDirectory() throws Exception {
+        assertEquals(directory.toAbsolutePath(), client.sessionDirectory());
+    }
+
+    @Test
+    public void dequeuesTheRequestsInOrder() throws Exception {
+        assertNull(server.poll());
+        /* More than the capacity, so that the slots are reused */
+        for (int i = 0; i < 10; ++i) {
+            client.offer("session" + i, 1, TimeUnit.SECONDS);
+            client.offer("other" + i, 1, TimeUnit.SECONDS);
+            assertEquals("session" + i, server.poll());
+            assertEquals("other" + i, server.poll());
+        }
+        assertNull(server.poll());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void waitsForRoomWhenFull() throws Exception {
+        for (int i = 0; i < 4; ++i) {
+            client.offer("session" + i, 1, TimeUnit.SECONDS);
+        }
+        client.offer("session4", 100, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void waitsForTheServerToAccept() throws Exception {
+        client.awaitAccepting(100, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void letsClientsInOnceAccepting() throws Exception {
+        server.startAccepting();
+        client.awaitAccepting(100, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooLongNames() throws Exception {
+        final StringBuilder name = new StringBuilder();
+        while (name.length() <= SMListenQueue.MAX_NAME_LENGTH) {
+            name.append('a');
+        }
+        client.offer(name.toString(), 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void skipsRequestsOfInvalidLength() throws Exception {
+        client.offer("session0", 1, TimeUnit.SECONDS);
+        /* Length of the first slot, as a corrupted or malicious client would write it */
+        final ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(0, Integer.MAX_VALUE);
+        clientFC.write(length, 4 * SMStream.CACHE_LINE + 8);
+        assertNull(server.poll());
+        client.offer("session1", 1, TimeUnit.SECONDS);
+        assertEquals("session1", server.poll());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SMPublisherTest {
+    private Path directory;
+    private Path address;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("smpublisher");
+        address = directory.resolve("topic");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.delete(directory);
+    }
+
+    @Test
+    public void letsSubscribersJoinByAddressUntilClosed() throws Exception {
+        final SMPublisher publisher = new SMPublisher(address, new SMSocketOptions());
+        try {
+            assertTrue(Files.exists(address));
+            final SMSubscriber subscriber = new SMSubscriber(address);
+            assertEquals(1, publisher.getSubscriberCount());
+            subscriber.close();
+            assertEquals(0, publisher.getSubscriberCount());
+        } finally {
+            publisher.close();
+        }
+        assertFalse(Files.exists(address));
+    }
+
+    @Test(timeout = 30000)
+    public void deliversEveryMessageToEachSubscriber() throws Exception {
+        final int messages = 20000;
+        final SMSocketOptions options = new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE);
+        final SMPublisher publisher = new SMPublisher(address, options);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] readers = new Thread[2];
+        final int[] received = new int[readers.length];
+        for (int r = 0; r < readers.length; ++r) {
+            final int reader = r;
+            final SMSubscriber subscriber = new SMSubscriber(address, options);
+            readers[r] = new Thread(() -> {
+                try (SMSubscriber _subscriber = subscriber) {
+                    final RecordHandler handler = (buffer, offset, length) -> {
+                        assertEquals(4, length);
+                        assertEquals(received[reader]++, buffer.getInt(offset));
+                    };
+                    while (_subscriber.take(handler, 16) != -1) {
+                        /* Checked by the handler */
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            readers[r].start();
+        }
+        final ByteBuffer message = ByteBuffer.allocate(4);
+        for (int i = 0; i < messages; ++i) {
+            message.clear();
+            message.putInt(0, i);
+            publisher.send(message);
+        }
+        publisher.close();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        for (int count : received) {
+            assertEquals(messages, count);
+        }
+        assertFalse(Files.exists(address));
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class SMRingTest {
+    private Path directory;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("smring");
+        file = directory.resolve("ring");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path _file : files) {
+                Files.delete(_file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test(timeout = 30000)
+    public void transfersBytesInOrderAcrossWrapArounds() throws Exception {
+        /* Many times the size of the ring */
+        transfer(new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE), 4000, 97);
+    }
+
+    @Test(timeout = 30000)
+    public void signalsTheEndOfTheStreamOnceTheWriterIsClosed() throws Exception {
+        final SMSocketOptions options = new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE);
+        try (FileChannel writerFC = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel readerFC = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final SMOutputStream out = new SMOutputStream(writerFC, options);
+            final SMInputStream in = new SMInputStream(readerFC, null, options);
+            out.write(new byte[]{1, 2, 3});
+            out.close();
+            assertEquals(1, in.read());
+            assertEquals(2, in.read());
+            assertEquals(3, in.read());
+            assertEquals(-1, in.read());
+            in.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void signalsTheEndOfTheStreamOnceTheWriterStopsBeating() throws Exception {
+        /* The process of the writer must be checkable */
+        assumeTrue(SMHeartbeat.PID_NAMESPACE != 0);
+        final SMSocketOptions options = new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE);
+        try (FileChannel writerFC = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel readerFC = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final SMRing ring = SMRing.create(writerFC, options.getOutputRingSize(), options.getRingSegments(), options.getAlignment(), options.getRecordFraming(), false, SMRing.PAGE_SIZE);
+            final SMOutputStream out = new SMOutputStream(writerFC, ring, options);
+            out.write(1);
+            final long time = System.nanoTime();
+            final SMInputStream in = new SMInputStream(readerFC, null, options);
+            /* As a writer whose process died without closing the ring, above any PID in use */
+            SMHeartbeat.stop(ring);
+            ring.publishWriter(Integer.MAX_VALUE, SMHeartbeat.PID_NAMESPACE);
+            assertEquals(1, in.read());
+            assertEquals(-1, in.read());
+            assertTrue(System.nanoTime() - time >= SMHeartbeat.TIMEOUT_NANOS);
+            in.close();
+            out.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void transfersCompactRecords() throws Exception {
+        transfer(new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE).setRecordFraming(RecordFraming.COMPACT), 20000, 13);
+    }
+
+    @Test
+    public void packsSmallRecordsTighterWhenCompact() throws Exception {
+        final int aligned = countRecords(new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE), 4);
+        Files.delete(file);
+        final int compact = countRecords(new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE).setRecordFraming(RecordFraming.COMPACT), 4);
+        assertTrue(aligned + " aligned records against " + compact + " compact ones", compact >= 4 * aligned);
+    }
+
+    @Test(timeout = 30000)
+    public void transfersRecordsAcrossSegments() throws Exception {
+        /* Records up to a third of a segment, so that the ends of the segments get padded */
+        transfer(new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE).setRingSegments(4), 4000, 1300);
+    }
+
+    @Test
+    public void holdsTheRecordsOfAllItsSegments() throws Exception {
+        final int single = countRecords(new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE), 100);
+        Files.delete(file);
+        final int segmented = countRecords(new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE).setRingSegments(4), 100);
+        assertTrue(single + " records in one segment against " + segmented + " in four", segmented >= 4 * single - 4);
+    }
+
+    @Test(timeout = 30000)
+    public void keepsTheRecordsOfConcurrentProducersWhole() throws Exception {
+        final int producers = 4;
+        final int records = 10000;
+        final SMSocketOptions options = new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE).setMultiProducer(true);
+        try (FileChannel writerFC = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel readerFC = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final SMOutputStream out = new SMOutputStream(writerFC, options);
+            final SMInputStream in = new SMInputStream(readerFC, null, options);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final Thread[] threads = new Thread[producers];
+            for (int p = 0; p < producers; ++p) {
+                final int producer = p;
+                threads[p] = new Thread(() -> {
+                    try {
+                        final ByteBuffer record = ByteBuffer.allocate(8);
+                        for (int i = 0; i < records; ++i) {
+                            record.putInt(0, producer).putInt(4, i);
+                            out.write(record.array(), 0, 8);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                });
+                threads[p].start();
+            }
+            final Thread closer = new Thread(() -> {
+                try {
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    out.close();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            closer.start();
+            final int[] next = new int[producers];
+            final RecordHandler handler = (buffer, offset, length) -> {
+                assertEquals(8, length);
+                final int producer = buffer.getInt(offset);
+                assertEquals("Record of producer " + producer, next[producer]++, buffer.getInt(offset + 4));
+            };
+            while (in.take(handler, 16) != -1) {
+                /* Checked by the handler */
+            }
+            closer.join();
+            in.close();
+            assertNull(failure.get());
+            for (int p = 0; p < producers; ++p) {
+                assertEquals(records, next[p]);
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void transfersCombinedWrites() throws Exception {
+        transfer(new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE).setWriteCombining(256, 1, TimeUnit.MILLISECONDS), 4000, 97);
+    }
+
+    @Test(timeout = 30000)
+    public void publishesCombinedWritesOnFlushOrDeadline() throws Exception {
+        final SMSocketOptions options = new SMSocketOptions().setWriteCombining(256, 10, TimeUnit.MILLISECONDS);
+        try (FileChannel writerFC = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel readerFC = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final SMOutputStream out = new SMOutputStream(writerFC, options);
+            final SMInputStream in = new SMInputStream(readerFC, null, options);
+            final List<Integer> lengths = new ArrayList<>();
+            final RecordHandler handler = (buffer, offset, length) -> lengths.add(length);
+            for (int i = 0; i < 10; ++i) {
+                out.write(i);
+            }
+            out.flush();
+            assertEquals(1, in.poll(handler, 16));
+            /* Published by the deadline, without flush */
+            out.write(new byte[3]);
+            assertEquals(1, in.take(handler, 16));
+            assertEquals(Arrays.asList(10, 3), lengths);
+            out.close();
+            assertEquals(-1, in.take(handler, 16));
+            in.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void closesWhileACombiningWriterWaitsForRoom() throws Exception {
+        final SMSocketOptions options = new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE).setWriteCombining(64, 1, TimeUnit.MILLISECONDS);
+        try (FileChannel writerFC = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel readerFC = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final SMOutputStream out = new SMOutputStream(writerFC, options);
+            final SMInputStream in = new SMInputStream(readerFC, null, options);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            /* Never read, so that the writer ends up waiting for room holding the combining lock */
+            final Thread writer = new Thread(() -> {
+                try {
+                    for (; ; ) {
+                        out.write(1);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            writer.start();
+            Thread.sleep(200);
+            assertTrue(writer.isAlive());
+            out.close();
+            writer.join();
+            assertTrue(String.valueOf(failure.get()), failure.get() instanceof IOException);
+            long read = 0;
+            int _read;
+            while ((_read = in.read(new byte[SMSocketOptions.MIN_RING_SIZE])) != -1) {
+                read += _read;
+            }
+            assertTrue(read > 0);
+            in.close();
+        }
+    }
+
+    /**
+     * @return the number of records of the given length the ring holds until the reader consumes them
+     */
+    private int countRecords(SMSocketOptions options, int length) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final SMOutputStream out = new SMOutputStream(fc, options);
+            final byte[] record = new byte[length];
+            int count = 0;
+            while (out.tryWrite(record, 0, length) == length) {
+                ++count;
+            }
+            out.close();
+            return count;
+        }
+    }
+
+    /**
+     * Writes messages of 1 to the given maximum length from another thread and checks the reader gets every byte in
+     * order, then the end of the stream.
+     */
+    private void transfer(SMSocketOptions options, int messages, int maxLength) throws Exception {
+        try (FileChannel writerFC = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel readerFC = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final SMOutputStream out = new SMOutputStream(writerFC, options);
+            final SMInputStream in = new SMInputStream(readerFC, null, options);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final Thread writer = new Thread(() -> {
+                try {
+                    final byte[] message = new byte[maxLength];
+                    int value = 0;
+                    for (int i = 0; i < messages; ++i) {
+                        final int length = 1 + i % maxLength;
+                        for (int j = 0; j < length; ++j) {
+                            message[j] = (byte) value++;
+                        }
+                        out.write(message, 0, length);
+                    }
+                    out.close();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            writer.start();
+            long total = 0;
+            for (int i = 0; i < messages; ++i) {
+                total += 1 + i % maxLength;
+            }
+            final byte[] buffer = new byte[maxLength];
+            int value = 0;
+            long read = 0;
+            int _read;
+            while ((_read = in.read(buffer, 0, buffer.length)) != -1) {
+                for (int j = 0; j < _read; ++j) {
+                    assertEquals("Byte " + (read + j), (byte) value++, buffer[j]);
+                }
+                read += _read;
+            }
+            writer.join();
+            in.close();
+            assertNull(failure.get());
+            assertEquals(total, read);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SMSessionPoolTest {
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("smsessionpool");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.delete(directory);
+    }
+
+    @Test
+    public void createsTheRingsAheadAndDeletesThemOnClose() throws Exception {
+        final SMSocketOptions options = new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE).setSessionPoolSize(2);
+        final SMSessionPool pool = new SMSessionPool(directory, "7777", options, SMRing.PAGE_SIZE);
+        try {
+            assertEquals(4, count(directory));
+        } finally {
+            pool.close();
+        }
+        assertEquals(0, count(directory));
+    }
+
+    @Test
+    public void leasesSessionsWithTheSameRingsOnly() throws Exception {
+        final SMSocketOptions options = new SMSocketOptions().setRingSize(SMSocketOptions.MIN_RING_SIZE).setSessionPoolSize(2);
+        final SMSessionPool pool = new SMSessionPool(directory, "7777", options, SMRing.PAGE_SIZE);
+        try {
+            assertNull(pool.lease(options.clone().setRingSize(SMSocketOptions.MIN_RING_SIZE << 1)));
+            assertNull(pool.lease(options.clone().setSessionLayout(SessionLayout.SINGLE_FILE)));
+            final SMSessionPool.Session session = pool.lease(options);
+            assertNotNull(session);
+            assertEquals(SMSocketOptions.MIN_RING_SIZE, session.inRing().segmentSize());
+            session.release(null);
+        } finally {
+            pool.close();
+        }
+        /* Including the ones of the released session */
+        assertEquals(0, count(directory));
+    }
+
+    @Test(timeout = 30000)
+    public void echoesOverPooledSessions() throws Exception {
+        SMSocketTest.echo(directory, new SMSocketOptions().setSessionPoolSize(2), new SMSocketOptions());
+    }
+
+    private static int count(Path directory) throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path ignored : files) {
+                ++count;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The Donar Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.donarproject.smocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SMSocketTest {
+    private static final String PORT = "7777";
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("smsocket");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.delete(directory);
+    }
+
+    @Test(timeout = 30000)
+    public void echoesOverSeparateFiles() throws Exception {
+        echo(new SMSocketOptions(), new SMSocketOptions().setSessionLayout(SessionLayout.SEPARATE_FILES));
+    }
+
+    @Test(timeout = 30000)
+    public void echoesOverASingleFile() throws Exception {
+        echo(new SMSocketOptions(), new SMSocketOptions().setSessionLayout(SessionLayout.SINGLE_FILE));
+    }
+
+    /**
+     * Connects a few clients one after the other to a server echoing what they write, and checks no file is left
+     * once closed.
+     */
+    static void echo(Path directory, SMSocketOptions serverOptions, SMSocketOptions clientOptions) throws Exception {
+        final SMServerSocket server = new SMServerSocket(directory.toString(), PORT, serverOptions);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread acceptor = new Thread(() -> {
+            try {
+                Iterable<SMSocket> sockets;
+                while ((sockets = server.accept()) != null) {
+                    for (SMSocket socket : sockets) {
+                        try (SMSocket _socket = socket) {
+                            final InputStream in = _socket.getInputStream();
+                            final OutputStream out = _socket.getOutputStream();
+                            int b;
+                            while ((b = in.read()) != -1) {
+                                out.write(b);
+                                out.flush();
+                            }
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                if (!server.isClosed()) {
+                    failure.set(e);
+                }
+            }
+        });
+        acceptor.start();
+        try {
+            for (int i = 0; i < 3; ++i) {
+                try (SMSocket client = new SMSocket(directory.toString(), PORT, clientOptions)) {
+                    final byte[] message = ("hello " + i).getBytes("UTF-8");
+                    client.getOutputStream().write(message);
+                    client.getOutputStream().flush();
+                    final byte[] echo = new byte[message.length];
+                    int read = 0;
+                    while (read < echo.length) {
+                        read += client.getInputStream().read(echo, read, echo.length - read);
+                    }
+                    assertArrayEquals(message, echo);
+                }
+            }
+        } finally {
+            server.close();
+            acceptor.join();
+        }
+        assertNull(failure.get());
+        assertEquals(new ArrayList<Path>(), list(directory));
+    }
+
+    private void echo(SMSocketOptions serverOptions, SMSocketOptions clientOptions) throws Exception {
+        echo(directory, serverOptions, clientOptions);
+    }
+
+    private static List<Path> list(Path directory) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+}